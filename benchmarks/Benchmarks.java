@@ -0,0 +1,188 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+/*
+ * One harness for the whole toolchain: generates a Jack program, then compiles it to VM code,
+ * translates that to assembly and assembles it, timing each stage in the same JVM.
+ * A few warm-up runs come first so the numbers are for JIT-compiled code.
+ *
+ * Usage: Benchmarks compilerClasses translatorClasses assemblerClasses classes runs [translator options]
+ * The classes directories are the modules' build output, see build.gradle.
+ */
+public class Benchmarks {
+    private static final int WARMUP_RUNS = 3;
+    private static final String PROGRAM = "Bench";
+
+    public static void main(String[] args) throws Exception {
+        int classes = Integer.parseInt(args[3]);
+        int runs = Integer.parseInt(args[4]);
+        String[] flags = Arrays.copyOfRange(args, 5, args.length);
+
+        File directory = new File(Files.createTempDirectory("bench").toFile(), PROGRAM);
+        directory.mkdirs();
+        writeProgram(directory, classes);
+
+        String[] translatorArgs = new String[flags.length + 1];
+        translatorArgs[0] = directory.getPath();
+        System.arraycopy(flags, 0, translatorArgs, 1, flags.length);
+
+        System.out.println("Program: " + classes + " classes, " + runs + " runs per stage"
+                + (flags.length > 0 ? ", translator options " + String.join(" ", flags) : ""));
+        System.out.printf("%-16s %10s %10s %16s%n", "stage", "median ms", "min ms", "output");
+        double[] compiler = time("jack-compiler", main(args[0], "JackCompiler"), new String[] {directory.getPath()}, runs);
+        print("jack-compiler", compiler, lines(directory, ".vm") + " VM lines");
+        double[] translator = time("vm-translator", main(args[1], "Main"), translatorArgs, runs);
+        print("vm-translator", translator, lines(directory, ".asm") + " asm lines");
+        double[] assembler = time("assembler", main(args[2], "Main"),
+                new String[] {new File(directory, PROGRAM + ".asm").getPath()}, runs);
+        print("assembler", assembler, lines(directory, ".hack") + " words");
+    }
+
+    private static void print(String stage, double[] times, String output) {
+        System.out.printf("%-16s %10.1f %10.1f %16s%n", stage, times[0], times[1], output);
+    }
+
+    // Runs one stage, returns its median and fastest time in ms
+    private static double[] time(String stage, Method main, String[] args, int runs) throws Exception {
+        PrintStream out = System.out;
+        ArrayList<Long> times = new ArrayList<>();
+        try {
+            // The tools' own output would only get in the way of the table
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            for (int i = 0; i < WARMUP_RUNS + runs; i++) {
+                long start = System.nanoTime();
+                main.invoke(null, (Object) args.clone());
+                if (i >= WARMUP_RUNS) {
+                    times.add(System.nanoTime() - start);
+                }
+            }
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(stage + " failed", e.getCause());
+        } finally {
+            System.setOut(out);
+        }
+
+        Collections.sort(times);
+        return new double[] {times.get(times.size() / 2) / 1e6, times.get(0) / 1e6};
+    }
+
+    // The main method of className, loaded from its own classes directory
+    private static Method main(String classesDirectory, String className) throws Exception {
+        URLClassLoader loader = new URLClassLoader(new URL[] {new File(classesDirectory).toURI().toURL()},
+                ClassLoader.getPlatformClassLoader());
+        return loader.loadClass(className).getMethod("main", String[].class);
+    }
+
+    private static long lines(File directory, String extension) throws IOException {
+        long count = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(extension)) {
+                try (Stream<String> lines = Files.lines(file.toPath())) {
+                    count += lines.count();
+                }
+            }
+        }
+        return count;
+    }
+
+    // Classes C0..Cn-1 with fields, loops, arrays, strings and calls into the next class,
+    // a Main that uses all of them and a Sys.init that calls it
+    private static void writeProgram(File directory, int classes) throws IOException {
+        for (int k = 0; k < classes; k++) {
+            String name = "C" + k;
+            String next = "C" + ((k + 1) % classes);
+            write(directory, name,
+                    "class " + name + " {\n"
+                    + "    field int x, y;\n"
+                    + "    field Array data;\n"
+                    + "    static int count;\n"
+                    + "\n"
+                    + "    constructor " + name + " new(int ax, int ay) {\n"
+                    + "        let x = ax;\n"
+                    + "        let y = ay;\n"
+                    + "        let data = Array.new(10);\n"
+                    + "        let count = count + 1;\n"
+                    + "        return this;\n"
+                    + "    }\n"
+                    + "\n"
+                    + "    method int sum(int n) {\n"
+                    + "        var int i, total;\n"
+                    + "        let i = 0;\n"
+                    + "        let total = 0;\n"
+                    + "        while (i < n) {\n"
+                    + "            let data[i] = (i * x) + y;\n"
+                    + "            let total = total + data[i];\n"
+                    + "            if (total > 1000) {\n"
+                    + "                let total = total - 1000;\n"
+                    + "            } else {\n"
+                    + "                let total = total + 1;\n"
+                    + "            }\n"
+                    + "            let i = i + 1;\n"
+                    + "        }\n"
+                    + "        return total;\n"
+                    + "    }\n"
+                    + "\n"
+                    + "    method int next(int v) {\n"
+                    + "        return " + next + ".step(v, x);\n"
+                    + "    }\n"
+                    + "\n"
+                    + "    function int step(int a, int b) {\n"
+                    + "        if ((a < b) & ~(a = 0)) {\n"
+                    + "            return a + b;\n"
+                    + "        }\n"
+                    + "        return -(a - b);\n"
+                    + "    }\n"
+                    + "\n"
+                    + "    method void print() {\n"
+                    + "        do Output.printString(\"" + name + " \");\n"
+                    + "        do Output.printInt(sum(10));\n"
+                    + "        do Output.println();\n"
+                    + "        return;\n"
+                    + "    }\n"
+                    + "\n"
+                    + "    method void dispose() {\n"
+                    + "        do data.dispose();\n"
+                    + "        do Memory.deAlloc(this);\n"
+                    + "        return;\n"
+                    + "    }\n"
+                    + "}\n");
+        }
+
+        StringBuilder main = new StringBuilder();
+        main.append("class Main {\n    function void main() {\n        var int v;\n");
+        for (int k = 0; k < classes; k++) {
+            main.append("        var C").append(k).append(" c").append(k).append(";\n");
+        }
+        main.append("        let v = 1;\n");
+        for (int k = 0; k < classes; k++) {
+            main.append("        let c").append(k).append(" = C").append(k).append(".new(").append(k)
+                    .append(", v);\n")
+                    .append("        let v = c").append(k).append(".next(v);\n")
+                    .append("        do c").append(k).append(".print();\n")
+                    .append("        do c").append(k).append(".dispose();\n");
+        }
+        main.append("        return;\n    }\n}\n");
+        write(directory, "Main", main.toString());
+
+        write(directory, "Sys", "class Sys {\n    function void init() {\n        do Main.main();\n"
+                + "        return;\n    }\n}\n");
+    }
+
+    private static void write(File directory, String className, String source) throws IOException {
+        try (FileWriter writer = new FileWriter(new File(directory, className + ".jack"))) {
+            writer.write(source);
+        }
+    }
+}
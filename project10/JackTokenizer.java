@@ -1,18 +1,38 @@
 import java.io.File;
 import java.io.IOException;
-import java.util.Scanner;
-import java.util.StringTokenizer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 
 /**
  * The `JackTokenizer` class is designed to tokenize a `.jack` file.
- * It processes the file line by line, tokenizing it into meaningful components for further processing.
+ * It reads the whole file once and splits it into tokens in a single pass, skipping white space
+ * and comments as it goes, so its time is linear in the size of the file however much of it
+ * is comments.
  */
 public class JackTokenizer {
-    private Scanner scanner;
-    private File fileToScan;
-    private String currentLine;
+    // Character classes of the lexer, by byte value
+    private static final byte OTHER = 0;
+    private static final byte SPACE = 1;
+    private static final byte LETTER = 2;
+    private static final byte DIGIT = 3;
+    private static final byte SYMBOL = 4;
+    private static final byte QUOTE = 5;
+    private static final byte SLASH = 6;
+    private static final byte[] CLASSES = new byte[256];
+
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final byte[][] KEYWORDS = new byte[21][];
+
+    private byte[] source;
+    // The tokens, as parallel arrays: type ordinal, where the token starts in source and its length
+    private byte[] types = new byte[256];
+    private int[] starts = new int[256];
+    private int[] lengths = new int[256];
+    private int count = 0;
+    private int pointer = 0;
     private String currentToken;
-    private StringTokenizer stringTokenizer;
+    private TokenType currentType;
 
     /**
      * Enum representing different types of tokens.
@@ -21,6 +41,31 @@ public class JackTokenizer {
         KEYWORD, SYMBOL, IDENTIFIER, INT_CONST, STRING_CONST
     }
 
+    static {
+        for (int c = 0; c < 256; c++) {
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+                CLASSES[c] = SPACE;
+            } else if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_') {
+                CLASSES[c] = LETTER;
+            } else if (c >= '0' && c <= '9') {
+                CLASSES[c] = DIGIT;
+            }
+        }
+        for (char c : "{}()[].,;+-*&|<>=~".toCharArray()) {
+            CLASSES[c] = SYMBOL;
+        }
+        CLASSES['/'] = SLASH;
+        CLASSES['"'] = QUOTE;
+
+        String[] keywords = {
+            "class", "constructor", "function", "method", "field", "static", "var", "int", "char", "boolean",
+            "void", "true", "false", "null", "this", "let", "do", "if", "else", "while", "return"
+        };
+        for (int k = 0; k < keywords.length; k++) {
+            KEYWORDS[k] = keywords[k].getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
     /**
      * Constructor: Opens the input .jack file / stream and gets ready to tokenize it.
      *
@@ -28,63 +73,124 @@ public class JackTokenizer {
      * @throws IOException If an I/O error occurs.
      */
     public JackTokenizer(String inputFile) throws IOException {
-        fileToScan = new File(inputFile);
-        scanner = new Scanner(fileToScan);
+        source = Files.readAllBytes(new File(inputFile).toPath());
+        tokenize();
     }
 
     /**
-     * Checks if there are more tokens in the input.
-     *
-     * @return `true` if there are more tokens, `false` otherwise.
+     * Splits the source into tokens. The state is the class of the character that starts a token,
+     * and each state consumes characters while they belong to its token. Comments are consumed
+     * the same way and produce no token.
      */
-    public boolean hasMoreTokens() {
-        if (stringTokenizer != null && stringTokenizer.hasMoreTokens()) {
-            return true;
-        } else {
-            while (scanner.hasNextLine()) {
-                currentLine = scanner.nextLine().split("//")[0].trim();
-                // Skip blank lines and comments
-                if (currentLine.isBlank() ||
-                        currentLine.startsWith("//") ||
-                        currentLine.startsWith("/*") ||
-                        currentLine.startsWith("*")) {
-                    continue;
-                } else {
-                    stringTokenizer = new StringTokenizer(currentLine, "(){},;[]._\"+-*/&|<>=~ ", true);
-                    if (stringTokenizer.hasMoreTokens()) {
-                        return true;
+    private void tokenize() {
+        int i = 0;
+        int length = source.length;
+        while (i < length) {
+            int start = i;
+            switch (CLASSES[source[i] & 0xFF]) {
+                case SPACE:
+                    i++;
+                    break;
+
+                case LETTER:
+                    do {
+                        i++;
+                    } while (i < length && (CLASSES[source[i] & 0xFF] == LETTER || CLASSES[source[i] & 0xFF] == DIGIT));
+                    add(isKeyword(start, i - start) ? TokenType.KEYWORD : TokenType.IDENTIFIER, start, i - start);
+                    break;
+
+                case DIGIT:
+                    do {
+                        i++;
+                    } while (i < length && CLASSES[source[i] & 0xFF] == DIGIT);
+                    add(TokenType.INT_CONST, start, i - start);
+                    break;
+
+                case QUOTE:
+                    do {
+                        i++;
+                        if (i == length || source[i] == '\n') {
+                            throw new IllegalArgumentException("Unterminated string constant: "
+                                    + new String(source, start, i - start, StandardCharsets.UTF_8));
+                        }
+                    } while (source[i] != '"');
+                    i++;
+                    add(TokenType.STRING_CONST, start, i - start);
+                    break;
+
+                case SLASH:
+                    if (i + 1 < length && source[i + 1] == '/') {
+                        // Line comment, up to the end of the line
+                        while (i < length && source[i] != '\n') {
+                            i++;
+                        }
+                    } else if (i + 1 < length && source[i + 1] == '*') {
+                        // Block comment, up to the first */ after the /*, or the end of the file
+                        i += 2;
+                        while (i < length && !(source[i] == '*' && i + 1 < length && source[i + 1] == '/')) {
+                            i++;
+                        }
+                        i = Math.min(i + 2, length);
+                    } else {
+                        i++;
+                        add(TokenType.SYMBOL, start, 1);
                     }
-                    continue;
-                }
+                    break;
+
+                case SYMBOL:
+                    i++;
+                    add(TokenType.SYMBOL, start, 1);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Unexpected character: " + (char) (source[i] & 0xFF));
             }
         }
+    }
 
+    private boolean isKeyword(int start, int length) {
+        for (byte[] keyword : KEYWORDS) {
+            if (keyword.length == length && keyword[0] == source[start]) {
+                int j = 1;
+                while (j < length && keyword[j] == source[start + j]) {
+                    j++;
+                }
+                if (j == length) {
+                    return true;
+                }
+            }
+        }
         return false;
     }
 
-    /**
-     * Gets the next token from the input and makes it the current token.
-     */
-    public void advance() {
-        currentToken = stringTokenizer.nextToken().trim();
-        while (currentToken.equals("")) {
-            currentToken = stringTokenizer.nextToken().trim();
+    private void add(TokenType type, int start, int length) {
+        if (count == types.length) {
+            types = Arrays.copyOf(types, count * 2);
+            starts = Arrays.copyOf(starts, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
         }
+        types[count] = (byte) type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        count++;
     }
 
     /**
-     * Handles string constants by advancing through the tokens until the closing quote is found.
+     * Checks if there are more tokens in the input.
      *
-     * @return The string constant without the opening and closing double quotes.
+     * @return `true` if there are more tokens, `false` otherwise.
      */
-    private String strAdvance() {
-        String str = "";
-        currentToken = stringTokenizer.nextToken();
-        while (!currentToken.equals("\"")) {
-            str += currentToken;
-            currentToken = stringTokenizer.nextToken();
-        }
-        return str;
+    public boolean hasMoreTokens() {
+        return pointer < count;
+    }
+
+    /**
+     * Gets the next token from the input and makes it the current token.
+     */
+    public void advance() {
+        currentType = TYPES[types[pointer]];
+        currentToken = new String(source, starts[pointer], lengths[pointer], StandardCharsets.UTF_8);
+        pointer++;
     }
 
     /**
@@ -98,60 +204,13 @@ public class JackTokenizer {
             return null; // No current token
         }
 
-        // Check if the current token is a keyword
-        switch (currentToken) {
-            case "class":
-            case "constructor":
-            case "function":
-            case "method":
-            case "field":
-            case "static":
-            case "var":
-            case "int":
-            case "char":
-            case "boolean":
-            case "void":
-            case "true":
-            case "false":
-            case "null":
-            case "this":
-            case "let":
-            case "do":
-            case "if":
-            case "else":
-            case "while":
-            case "return":
-                return TokenType.KEYWORD;
-        }
-
-        // Check if the current token is a symbol
-        if ("{}()[].,;+-*/&|<>=~".contains(currentToken)) {
-            return TokenType.SYMBOL;
-        }
-
-        // Check if the current token is an integer constant
-        try {
-            int value = Integer.parseInt(currentToken);
-            if (value >= 0 && value <= 32767) {
-                return TokenType.INT_CONST;
-            }
-        } catch (NumberFormatException e) {
-            // Not an integer
-        }
-
-        // Check if the current token is a string constant
-        if (currentToken.startsWith("\"") && currentToken.endsWith("\"")) {
-            return TokenType.STRING_CONST;
+        // Integer constants are 0 to 32767
+        if (currentType == TokenType.INT_CONST
+                && (currentToken.length() > 5 || Integer.parseInt(currentToken) > 32767)) {
+            System.err.println("Error: Unknown token type: " + currentToken);
+            return null;
         }
-
-        // If none of the above, assume it's an identifier
-        if (currentToken.matches("[a-zA-Z_][a-zA-Z_0-9]*")) {
-            return TokenType.IDENTIFIER;
-        }
-
-        // If no type matches, return null
-        System.err.println("Error: Unknown token type: " + currentToken);
-        return null;
+        return currentType;
     }
 
     /**
@@ -196,6 +255,6 @@ public class JackTokenizer {
      * @return The current token if it is a string constant.
      */
     public String stringVal() {
-        return strAdvance();
+        return currentToken.substring(1, currentToken.length() - 1);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,152 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The abstract syntax tree of a class, which the CompilationEngine builds and the CodeGenerator
+ * turns into VM code. Passes that rewrite the tree can run between the two.
+ *
+ * The nodes live in an arena of parallel int arrays, and a node is its index in them, with -1
+ * for no node. Every node has a kind, up to three fields a, b and c whose meaning depends on the
+ * kind, and the next node of the list it is in: a class's subroutines, a block's statements and
+ * a call's arguments are lists. Names and string constants are kept once each in a table of
+ * texts, and a node holds the number of its text.
+ *
+ * Variables are resolved to their VM segment and index when they are parsed, and calls to the
+ * full name of the function they call, so the tree is read without a symbol table.
+ */
+public class Ast {
+    // The kinds of nodes, and their fields
+
+    /** a: the name's text, b: the list of subroutines, c: the number of fields */
+    public static final int CLASS = 0;
+    /** a: the name's text, b: the list of statements, c: the number of local variables */
+    public static final int CONSTRUCTOR = 1;
+    public static final int FUNCTION = 2;
+    public static final int METHOD = 3;
+
+    /** a: the VARIABLE or ARRAY assigned to, b: the expression */
+    public static final int LET = 4;
+    /** a: the condition, b: the list of statements, c: the list of statements of the else, if any */
+    public static final int IF = 5;
+    /** a: the condition, b: the list of statements */
+    public static final int WHILE = 6;
+    /** a: the CALL */
+    public static final int DO = 7;
+    /** a: the expression, or -1 for none */
+    public static final int RETURN = 8;
+
+    /** a: the value, which is -1 for true and 0 for false and null, and can be negative once folded */
+    public static final int CONSTANT = 9;
+    /** a: the string's text */
+    public static final int STRING = 10;
+    /** The object a method or constructor runs on */
+    public static final int THIS = 11;
+    /** a: the ordinal of its VMWriter.SEGMENT, b: its index in the segment */
+    public static final int VARIABLE = 12;
+    /** An array entry. a: the VARIABLE holding the array, b: the index expression */
+    public static final int ARRAY = 13;
+    /** a: the full name's text, b: the object of a method call or -1, c: the list of arguments */
+    public static final int CALL = 14;
+    /** a: the operator's character, b: the left operand, c: the right operand */
+    public static final int BINARY = 15;
+    /** a: the operator's character, '-' or '~', b: the operand */
+    public static final int UNARY = 16;
+    /** The operand times 2 to the power of a, made by adding it to itself a times. b: the operand */
+    public static final int DOUBLE = 17;
+
+    private int[] kinds = new int[256];
+    private int[] as = new int[256];
+    private int[] bs = new int[256];
+    private int[] cs = new int[256];
+    private int[] nexts = new int[256];
+    private int count = 0;
+
+    private ArrayList<String> texts = new ArrayList<String>();
+    private HashMap<String, Integer> textNumbers = new HashMap<String, Integer>();
+
+    /**
+     * Adds a node that is in no list yet, and returns it.
+     */
+    public int add(int kind, int a, int b, int c) {
+        if (count == kinds.length) {
+            kinds = Arrays.copyOf(kinds, count * 2);
+            as = Arrays.copyOf(as, count * 2);
+            bs = Arrays.copyOf(bs, count * 2);
+            cs = Arrays.copyOf(cs, count * 2);
+            nexts = Arrays.copyOf(nexts, count * 2);
+        }
+        kinds[count] = kind;
+        as[count] = a;
+        bs[count] = b;
+        cs[count] = c;
+        nexts[count] = -1;
+        return count++;
+    }
+
+    /**
+     * Returns the number of a text, adding it to the table if it isn't there.
+     */
+    public int text(String text) {
+        Integer number = textNumbers.get(text);
+        if (number == null) {
+            number = texts.size();
+            texts.add(text);
+            textNumbers.put(text, number);
+        }
+        return number;
+    }
+
+    public String textOf(int number) {
+        return texts.get(number);
+    }
+
+    public int kind(int node) {
+        return kinds[node];
+    }
+
+    public int a(int node) {
+        return as[node];
+    }
+
+    public int b(int node) {
+        return bs[node];
+    }
+
+    public int c(int node) {
+        return cs[node];
+    }
+
+    public int next(int node) {
+        return nexts[node];
+    }
+
+    /**
+     * Turns a node into another one in place, keeping its place in its list,
+     * so that whatever pointed at it now points at the new node.
+     */
+    public void replace(int node, int kind, int a, int b, int c) {
+        kinds[node] = kind;
+        as[node] = a;
+        bs[node] = b;
+        cs[node] = c;
+    }
+
+    /**
+     * Makes next follow node in its list.
+     */
+    public void setNext(int node, int next) {
+        nexts[node] = next;
+    }
+
+    /**
+     * Returns the number of nodes in the list that starts with node.
+     */
+    public int length(int node) {
+        int length = 0;
+        for (; node != -1; node = nexts[node]) {
+            length++;
+        }
+        return length;
+    }
+}
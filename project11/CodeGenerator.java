@@ -0,0 +1,636 @@
+/**
+ * The CodeGenerator class writes the VM code of a class from its Ast, as the CompilationEngine
+ * parsed it. It walks the tree once, in the order of the source, and labels are numbered per
+ * class in the order their statements appear.
+ *
+ * With array addressing on, array entries whose index is a constant k, a variable i or i + k are
+ * read and written as `that k`, and `pointer 1` is set only when THAT doesn't already point at the
+ * array plus i. What THAT points at is known from where it was last set until the next label,
+ * as the code between labels runs straight through, and until the array or i is assigned.
+ * Calls save and restore THAT, so they keep it.
+ *
+ * With branch conditions on, conditions are compiled into jumps instead of a boolean on the stack
+ * that is then negated (see jumpIf), and a `while` tests its condition at the bottom of the loop.
+ */
+public class CodeGenerator {
+    private static final VMWriter.SEGMENT[] SEGMENTS = VMWriter.SEGMENT.values();
+
+    private int labelCounter = 0;
+    private boolean arrayAddressing = false;
+    private boolean branchConditions = false;
+
+    // What THAT points at, with array addressing: the array variable's segment ordinal and index,
+    // plus the value of the offset variable, if its segment is not -1. -1 as the array's segment
+    // for not known.
+    private int thatArraySegment = -1;
+    private int thatArrayIndex;
+    private int thatOffsetSegment;
+    private int thatOffsetIndex;
+
+    private Ast ast;
+    private VMWriter vmWriter;
+    private String className;
+
+    public CodeGenerator(Ast ast, VMWriter vmWriter) {
+        this.ast = ast;
+        this.vmWriter = vmWriter;
+    }
+
+    /**
+     * Makes array entries with simple indices use `that` with an offset, and reuse THAT
+     * where it already points at the right place.
+     */
+    public void setArrayAddressing(boolean arrayAddressing) {
+        this.arrayAddressing = arrayAddressing;
+    }
+
+    /**
+     * Makes `if` and `while` jump on their conditions without computing them as booleans
+     * where they can.
+     */
+    public void setBranchConditions(boolean branchConditions) {
+        this.branchConditions = branchConditions;
+    }
+
+    /**
+     * Writes the VM code of a class.
+     *
+     * - Writes each subroutine as a function named `ClassName.subroutineName`.
+     */
+    public void generate(int classNode) {
+        className = ast.textOf(ast.a(classNode));
+        for (int subroutine = ast.b(classNode); subroutine != -1; subroutine = ast.next(subroutine)) {
+            writeFunctionDec(subroutine, ast.c(classNode));
+            generateStatements(ast.b(subroutine));
+        }
+    }
+
+    /**
+     * Writes the function declaration and handles initialization for methods or constructors.
+     *
+     * - Outputs the function VM code with the correct local variable count.
+     * - Initializes the `this` pointer for methods or allocates memory for constructors.
+     *
+     * Example:
+     * Input: `METHOD` -> Pushes argument 0 as `this`.
+     *        `CONSTRUCTOR` -> Allocates memory for fields.
+     */
+    private void writeFunctionDec(int subroutine, int fields) {
+        forgetThat();
+        vmWriter.writeFunction(className + "." + ast.textOf(ast.a(subroutine)), ast.c(subroutine));
+        if (ast.kind(subroutine) == Ast.METHOD){
+            vmWriter.writePush(VMWriter.SEGMENT.ARG, 0);
+            vmWriter.writePop(VMWriter.SEGMENT.POINTER,0);
+        }
+        else if (ast.kind(subroutine) == Ast.CONSTRUCTOR){
+            vmWriter.writePush(VMWriter.SEGMENT.CONST, fields);
+            vmWriter.writeCall("Memory.alloc", 1);
+            vmWriter.writePop(VMWriter.SEGMENT.POINTER,0);
+        }
+    }
+
+    /**
+     * Writes a list of statements.
+     */
+    private void generateStatements(int statement) {
+        for (; statement != -1; statement = ast.next(statement)) {
+            switch (ast.kind(statement)) {
+                case Ast.LET:
+                    generateLet(statement);
+                    break;
+                case Ast.IF:
+                    generateIf(statement);
+                    break;
+                case Ast.WHILE:
+                    generateWhile(statement);
+                    break;
+                case Ast.DO:
+                    generateExpression(ast.a(statement));
+                    vmWriter.writePop(VMWriter.SEGMENT.TEMP,0);
+                    break;
+                case Ast.RETURN:
+                    if (ast.a(statement) == -1) {
+                        vmWriter.writePush(VMWriter.SEGMENT.CONST,0);
+                    }
+                    else {
+                        generateExpression(ast.a(statement));
+                    }
+                    vmWriter.writeReturn();
+                    break;
+                default:
+                    throw new IllegalStateException("not a statement: node kind " + ast.kind(statement));
+            }
+        }
+    }
+
+    /**
+     * Writes a `let` statement.
+     *
+     * - For an array entry, computes its address before the value, and stores through `that`.
+     *   With array addressing, the value can come first (see canGoFirst), and is stored straight
+     *   into `that k`.
+     */
+    private void generateLet(int let) {
+        int target = ast.a(let);
+        if (ast.kind(target) == Ast.ARRAY && canAddress(target) && canGoFirst(ast.b(let), target))
+        {
+            // The value first, so that no temp is needed to set THAT after it
+            generateExpression(ast.b(let));
+            pointAt(target);
+            vmWriter.writePop(VMWriter.SEGMENT.THAT, offset(ast.b(target)));
+            // The entry can be a field of this object
+            if (thatArraySegment == VMWriter.SEGMENT.THIS.ordinal() || thatOffsetSegment == VMWriter.SEGMENT.THIS.ordinal()) {
+                forgetThat();
+            }
+        }
+        else if (ast.kind(target) == Ast.ARRAY)
+        {
+            pushVariable(ast.a(target));
+            generateExpression(ast.b(target));
+            vmWriter.writeArithmetic(VMWriter.COMMAND.ADD);
+
+            generateExpression(ast.b(let));
+            vmWriter.writePop(VMWriter.SEGMENT.TEMP,0);
+            vmWriter.writePop(VMWriter.SEGMENT.POINTER,1);
+            vmWriter.writePush(VMWriter.SEGMENT.TEMP,0);
+            vmWriter.writePop(VMWriter.SEGMENT.THAT,0);
+            forgetThat();
+        }
+        else {
+            generateExpression(ast.b(let));
+            popVariable(target);
+        }
+    }
+
+    /**
+     * Writes a `while` statement: the condition at the top, and a jump back to it after the body.
+     * With branch conditions, the condition is at the bottom instead, and jumps back to the top
+     * while it is true, so each turn of the loop runs one jump instead of two. That is only for
+     * booleans (see isBoolean): the loop goes on while its condition is -1, and `if-goto` jumps on
+     * any value but 0, so other conditions stay at the top, negated.
+     */
+    private void generateWhile(int loop) {
+        String firstLabel = newLabel();
+        String secondLabel = newLabel();
+        if (branchConditions && isBoolean(ast.a(loop))) {
+            vmWriter.writeGoto(firstLabel);
+            writeLabel(secondLabel);
+            generateStatements(ast.b(loop));
+            writeLabel(firstLabel);
+            jumpIf(ast.a(loop), true, secondLabel);
+            return;
+        }
+        writeLabel(secondLabel);
+
+        generateExpression(ast.a(loop));
+        vmWriter.writeArithmetic(VMWriter.COMMAND.NOT);
+        vmWriter.writeIf(firstLabel);
+
+        generateStatements(ast.b(loop));
+
+        vmWriter.writeGoto(secondLabel);
+        writeLabel(firstLabel);
+    }
+
+    /**
+     * Writes an `if` statement, with its `else` body, if any, after the `if` body.
+     */
+    private void generateIf(int ifNode) {
+        String elseLabel = newLabel();
+        String endLabel = newLabel();
+
+        if (branchConditions) {
+            jumpIf(ast.a(ifNode), false, elseLabel);
+            generateStatements(ast.b(ifNode));
+            // Without an else, there is nothing to jump over
+            if (ast.c(ifNode) != -1) {
+                vmWriter.writeGoto(endLabel);
+                writeLabel(elseLabel);
+                generateStatements(ast.c(ifNode));
+                writeLabel(endLabel);
+            }
+            else {
+                writeLabel(elseLabel);
+            }
+            return;
+        }
+
+        generateExpression(ast.a(ifNode));
+        vmWriter.writeArithmetic(VMWriter.COMMAND.NOT);
+        vmWriter.writeIf(elseLabel);
+
+        generateStatements(ast.b(ifNode));
+
+        vmWriter.writeGoto(endLabel);
+        writeLabel(elseLabel);
+
+        generateStatements(ast.c(ifNode));
+
+        writeLabel(endLabel);
+    }
+
+    /**
+     * Writes a jump to a label, taken when a condition is true, or when it is false.
+     *
+     * - A constant true (-1) or false (0) is a `goto` or nothing.
+     * - `~c` jumps on c the other way, when c is a boolean (see isBoolean), as `~` of other values
+     *   isn't their negation.
+     * - `a = b` jumps when false on `a - b`, which is not 0 only when they differ.
+     * - `a < k` and `a > k` jump when false on `a > k - 1` and `a < k + 1`.
+     * - `c1 & c2` and `c1 | c2` of booleans jump on each of them, skipping c2 when c1 decides,
+     *   if c2 calls nothing.
+     * - Any other condition is computed, and negated to jump when it is false.
+     *
+     * A condition counts as true only when it is -1, as it does when it is negated and jumped on,
+     * so jumps on true are only for booleans, where `if-goto` on the value itself is the same.
+     *
+     * Example:
+     * Input: `~(key = 32)`, when true
+     * Output: `push key`, `push constant 32`, `sub`, `if-goto label`
+     */
+    private void jumpIf(int condition, boolean value, String label) {
+        switch (ast.kind(condition)) {
+            case Ast.CONSTANT:
+                if (isBoolean(condition)) {
+                    if ((ast.a(condition) != 0) == value) {
+                        vmWriter.writeGoto(label);
+                    }
+                    return;
+                }
+                break;
+
+            case Ast.UNARY:
+                if (ast.a(condition) == '~' && isBoolean(ast.b(condition))) {
+                    jumpIf(ast.b(condition), !value, label);
+                    return;
+                }
+                break;
+
+            case Ast.BINARY: {
+                char op = (char) ast.a(condition);
+                int left = ast.b(condition);
+                int right = ast.c(condition);
+                int k = ast.kind(right) == Ast.CONSTANT ? ast.a(right) : -1;
+
+                if (op == '=' && !value) {
+                    generateExpression(left);
+                    if (k != 0) {
+                        generateExpression(right);
+                        vmWriter.writeArithmetic(VMWriter.COMMAND.SUB);
+                    }
+                    vmWriter.writeIf(label);
+                    return;
+                }
+                if (op == '<' && !value && k >= 1 && k <= 32767) {
+                    generateExpression(left);
+                    vmWriter.writePush(VMWriter.SEGMENT.CONST, k - 1);
+                    vmWriter.writeArithmetic(VMWriter.COMMAND.GT);
+                    vmWriter.writeIf(label);
+                    return;
+                }
+                if (op == '>' && !value && k >= 0 && k < 32767) {
+                    generateExpression(left);
+                    vmWriter.writePush(VMWriter.SEGMENT.CONST, k + 1);
+                    vmWriter.writeArithmetic(VMWriter.COMMAND.LT);
+                    vmWriter.writeIf(label);
+                    return;
+                }
+                if ((op == '&' || op == '|') && isBoolean(left) && isBoolean(right) && !calls(right)) {
+                    // c1 decides c1 & c2 when false and c1 | c2 when true
+                    if ((op == '&') != value) {
+                        jumpIf(left, value, label);
+                        jumpIf(right, value, label);
+                    }
+                    else {
+                        String skipLabel = newLabel();
+                        jumpIf(left, !value, skipLabel);
+                        jumpIf(right, value, label);
+                        writeLabel(skipLabel);
+                    }
+                    return;
+                }
+                break;
+            }
+        }
+
+        generateExpression(condition);
+        if (!value) {
+            vmWriter.writeArithmetic(VMWriter.COMMAND.NOT);
+        }
+        vmWriter.writeIf(label);
+    }
+
+    /**
+     * Returns whether an expression is always true (-1) or false (0).
+     */
+    private boolean isBoolean(int expression) {
+        switch (ast.kind(expression)) {
+            case Ast.CONSTANT:
+                return ast.a(expression) == 0 || ast.a(expression) == -1;
+            case Ast.UNARY:
+                return ast.a(expression) == '~' && isBoolean(ast.b(expression));
+            case Ast.BINARY:
+                switch (ast.a(expression)) {
+                    case '<':
+                    case '>':
+                    case '=':
+                        return true;
+                    case '&':
+                    case '|':
+                        return isBoolean(ast.b(expression)) && isBoolean(ast.c(expression));
+                    default:
+                        return false;
+                }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Writes an expression, which leaves its value on the stack.
+     */
+    private void generateExpression(int expression) {
+        switch (ast.kind(expression)) {
+            case Ast.CONSTANT: {
+                int value = ast.a(expression);
+                // Constants are 0 to 32767
+                if (value == -32768) {
+                    vmWriter.writePush(VMWriter.SEGMENT.CONST, 32767);
+                    vmWriter.writeArithmetic(VMWriter.COMMAND.NOT);
+                }
+                else if (value < 0) {
+                    vmWriter.writePush(VMWriter.SEGMENT.CONST, -value);
+                    vmWriter.writeArithmetic(VMWriter.COMMAND.NEG);
+                }
+                else {
+                    vmWriter.writePush(VMWriter.SEGMENT.CONST, value);
+                }
+                break;
+            }
+
+            case Ast.STRING: {
+                String str = ast.textOf(ast.a(expression));
+
+                vmWriter.writePush(VMWriter.SEGMENT.CONST,str.length());
+                vmWriter.writeCall("String.new",1);
+
+                for (int i = 0; i < str.length(); i++) {
+                    vmWriter.writePush(VMWriter.SEGMENT.CONST,(int)str.charAt(i));
+                    vmWriter.writeCall("String.appendChar",2);
+                }
+                break;
+            }
+
+            case Ast.THIS:
+                vmWriter.writePush(VMWriter.SEGMENT.POINTER,0);
+                break;
+
+            case Ast.VARIABLE:
+                pushVariable(expression);
+                break;
+
+            case Ast.ARRAY:
+                if (canAddress(expression)) {
+                    pointAt(expression);
+                    vmWriter.writePush(VMWriter.SEGMENT.THAT, offset(ast.b(expression)));
+                    break;
+                }
+                pushVariable(ast.a(expression));
+                generateExpression(ast.b(expression));
+                vmWriter.writeArithmetic(VMWriter.COMMAND.ADD);
+                vmWriter.writePop(VMWriter.SEGMENT.POINTER,1);
+                vmWriter.writePush(VMWriter.SEGMENT.THAT,0);
+                forgetThat();
+                break;
+
+            case Ast.CALL: {
+                int nargs = 0;
+                if (ast.b(expression) != -1) {
+                    generateExpression(ast.b(expression));
+                    nargs++;
+                }
+                for (int argument = ast.c(expression); argument != -1; argument = ast.next(argument)) {
+                    generateExpression(argument);
+                    nargs++;
+                }
+                vmWriter.writeCall(ast.textOf(ast.a(expression)), nargs);
+                // The subroutine can assign statics and fields, but not this one's locals and arguments
+                if (!isLocalSegment(thatArraySegment) || (thatOffsetSegment != -1 && !isLocalSegment(thatOffsetSegment))) {
+                    forgetThat();
+                }
+                break;
+            }
+
+            case Ast.BINARY:
+                generateExpression(ast.b(expression));
+                generateExpression(ast.c(expression));
+                vmWriter.writeCommand(operator((char) ast.a(expression)),"","");
+                break;
+
+            case Ast.UNARY:
+                generateExpression(ast.b(expression));
+                if (ast.a(expression) == '-') {
+                    vmWriter.writeArithmetic(VMWriter.COMMAND.NEG);
+                }
+                else {
+                    vmWriter.writeArithmetic(VMWriter.COMMAND.NOT);
+                }
+                break;
+
+            case Ast.DOUBLE: {
+                int operand = ast.b(expression);
+                if (ast.a(expression) == 1 && (ast.kind(operand) == Ast.VARIABLE || ast.kind(operand) == Ast.THIS)) {
+                    generateExpression(operand);
+                    generateExpression(operand);
+                    vmWriter.writeArithmetic(VMWriter.COMMAND.ADD);
+                    break;
+                }
+                // temp 1 holds the value only while it is doubled, so nothing in between can use it
+                generateExpression(operand);
+                for (int i = 0; i < ast.a(expression); i++) {
+                    vmWriter.writePop(VMWriter.SEGMENT.TEMP,1);
+                    vmWriter.writePush(VMWriter.SEGMENT.TEMP,1);
+                    vmWriter.writePush(VMWriter.SEGMENT.TEMP,1);
+                    vmWriter.writeArithmetic(VMWriter.COMMAND.ADD);
+                }
+                break;
+            }
+
+            default:
+                throw new IllegalStateException("not an expression: node kind " + ast.kind(expression));
+        }
+    }
+
+    private void pushVariable(int variable) {
+        vmWriter.writePush(SEGMENTS[ast.a(variable)], ast.b(variable));
+    }
+
+    private void popVariable(int variable) {
+        vmWriter.writePop(SEGMENTS[ast.a(variable)], ast.b(variable));
+        if ((ast.a(variable) == thatArraySegment && ast.b(variable) == thatArrayIndex)
+                || (ast.a(variable) == thatOffsetSegment && ast.b(variable) == thatOffsetIndex)) {
+            forgetThat();
+        }
+    }
+
+    private void writeLabel(String label) {
+        vmWriter.writeLabel(label);
+        forgetThat();
+    }
+
+    private void forgetThat() {
+        thatArraySegment = -1;
+    }
+
+    /**
+     * Returns whether an array entry can be addressed as `that k`: its index is a constant k,
+     * a variable, or a variable plus a constant k.
+     */
+    private boolean canAddress(int entry) {
+        return arrayAddressing && offset(ast.b(entry)) != -1;
+    }
+
+    /**
+     * Returns the constant k of an index that is k, i or i + k, with k 0 for i, or -1 for other indices.
+     */
+    private int offset(int index) {
+        switch (ast.kind(index)) {
+            case Ast.CONSTANT:
+                return ast.a(index) >= 0 && ast.a(index) <= 32767 ? ast.a(index) : -1;
+            case Ast.VARIABLE:
+                return 0;
+            case Ast.BINARY:
+                if (ast.a(index) != '+') {
+                    return -1;
+                }
+                if (ast.kind(ast.b(index)) == Ast.VARIABLE && ast.kind(ast.c(index)) == Ast.CONSTANT) {
+                    return offset(ast.c(index));
+                }
+                if (ast.kind(ast.c(index)) == Ast.VARIABLE && ast.kind(ast.b(index)) == Ast.CONSTANT) {
+                    return offset(ast.b(index));
+                }
+                return -1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Returns the variable i of an index that is i or i + k, or -1 for a constant index.
+     */
+    private int offsetVariable(int index) {
+        switch (ast.kind(index)) {
+            case Ast.VARIABLE:
+                return index;
+            case Ast.BINARY:
+                return ast.kind(ast.b(index)) == Ast.VARIABLE ? ast.b(index) : ast.c(index);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Makes THAT point at the array of an entry plus its offset variable, if it doesn't already.
+     */
+    private void pointAt(int entry) {
+        int array = ast.a(entry);
+        int variable = offsetVariable(ast.b(entry));
+        int variableSegment = variable == -1 ? -1 : ast.a(variable);
+        int variableIndex = variable == -1 ? 0 : ast.b(variable);
+        if (thatArraySegment == ast.a(array) && thatArrayIndex == ast.b(array)
+                && thatOffsetSegment == variableSegment && thatOffsetIndex == variableIndex) {
+            return;
+        }
+        pushVariable(array);
+        if (variable != -1) {
+            pushVariable(variable);
+            vmWriter.writeArithmetic(VMWriter.COMMAND.ADD);
+        }
+        vmWriter.writePop(VMWriter.SEGMENT.POINTER,1);
+        thatArraySegment = ast.a(array);
+        thatArrayIndex = ast.b(array);
+        thatOffsetSegment = variableSegment;
+        thatOffsetIndex = variableIndex;
+    }
+
+    /**
+     * Returns whether the value of a `let` into an array entry can be computed before the entry's
+     * address: it calls nothing that could assign the array or offset variable, which only a call
+     * to another subroutine can, and never one of its local variables or arguments.
+     */
+    private boolean canGoFirst(int value, int entry) {
+        int variable = offsetVariable(ast.b(entry));
+        return !calls(value) || (isLocal(ast.a(entry)) && (variable == -1 || isLocal(variable)));
+    }
+
+    private static boolean isLocalSegment(int segment) {
+        return segment == VMWriter.SEGMENT.LOCAL.ordinal() || segment == VMWriter.SEGMENT.ARG.ordinal();
+    }
+
+    private boolean isLocal(int variable) {
+        return isLocalSegment(ast.a(variable));
+    }
+
+    /**
+     * Returns whether an expression calls a subroutine, including the OS's for strings, * and /.
+     */
+    private boolean calls(int expression) {
+        switch (ast.kind(expression)) {
+            case Ast.CALL:
+            case Ast.STRING:
+                return true;
+            case Ast.ARRAY:
+            case Ast.UNARY:
+            case Ast.DOUBLE:
+                return calls(ast.b(expression));
+            case Ast.BINARY:
+                return ast.a(expression) == '*' || ast.a(expression) == '/'
+                        || calls(ast.b(expression)) || calls(ast.c(expression));
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the VM command of a binary operator.
+     */
+    private static String operator(char op) {
+        switch (op){
+            case '+':
+                return "add";
+            case '-':
+                return "sub";
+            case '*':
+                return "call Math.multiply 2";
+            case '/':
+                return "call Math.divide 2";
+            case '<':
+                return "lt";
+            case '>':
+                return "gt";
+            case '=':
+                return "eq";
+            case '&':
+                return "and";
+            case '|':
+                return "or";
+            default:
+                throw new IllegalStateException("Unknown op! received " + op);
+        }
+    }
+
+    /**
+     * Generates a unique label for VM code.
+     *
+     * - Combines the class name with an incrementing counter for uniqueness.
+     *
+     * Example:
+     * Output: `ClassName_0`, `ClassName_1`, etc.
+     *
+     * Returns:
+     * - A unique string label.
+     */
+    private String newLabel(){
+        return className + "_" + (labelCounter++);
+    }
+}
@@ -3,16 +3,21 @@ import java.io.File;
 /**
  * The CompilationEngine class is responsible for compiling a given input file
  * into a VM code output file. It uses a JackTokenizer to tokenize the input,
- * a SymbolTable to manage variable scopes, and a VMWriter to generate the VM code.
+ * a SymbolTable to manage variable scopes, and parses the class into an Ast,
+ * which a CodeGenerator then writes as VM code with a VMWriter.
  */
 public class CompilationEngine {
-    private int labelCounter = 0;
-
     private VMWriter vmWriter;
     private JackTokenizer jackTokenizer;
     private SymbolTable symbolTable;
+    private Ast ast;
     private String className;
-    private String subroutineName;
+    private boolean folding = false;
+    private boolean poolingStrings = false;
+    private boolean arrayAddressing = false;
+    private boolean branchConditions = false;
+    // The static variables the class uses, counted once it is compiled
+    private int statics = 0;
 
     /**
      * Creates a new compilation engine with the given input and output files.
@@ -25,19 +30,49 @@ public class CompilationEngine {
         jackTokenizer = new JackTokenizer(in);
         symbolTable = new SymbolTable();
         vmWriter = new VMWriter(out);
+        ast = new Ast();
     }
 
-    
-    private String currentFunctionName() {
-        if (className.length() != 0 && subroutineName.length() !=0) {
-            return className + "." + subroutineName;
-        }
-        return "";
+    /**
+     * Makes compileClass simplify constant expressions before it writes the code (see ConstantFolder).
+     */
+    public void setFolding(boolean folding) {
+        this.folding = folding;
+    }
+
+    /**
+     * Makes compileClass build each string constant of the class once, in a static variable (see StringPool).
+     */
+    public void setStringPooling(boolean poolingStrings) {
+        this.poolingStrings = poolingStrings;
+    }
+
+    /**
+     * Makes the code of array entries reuse THAT where it can (see CodeGenerator).
+     */
+    public void setArrayAddressing(boolean arrayAddressing) {
+        this.arrayAddressing = arrayAddressing;
+    }
+
+    /**
+     * Makes `if` and `while` jump on their conditions without negating them (see CodeGenerator.jumpIf).
+     */
+    public void setBranchConditions(boolean branchConditions) {
+        this.branchConditions = branchConditions;
+    }
+
+    /**
+     * Returns the number of static variables the class uses, its own and those of its pooled
+     * strings, once compileClass is done.
+     */
+    public int staticCount() {
+        return statics;
     }
 
     /**
      * Compiles a complete class.
      * The structure of a class is: 'class' className '{' classVarDec* subroutineDec* '}'
+     * The whole class is parsed into a tree before any of its code is generated.
      * 
      * @throws IllegalStateException if the class structure is invalid, including:
      *         - Missing or incorrect 'class' keyword
@@ -62,11 +97,26 @@ public class CompilationEngine {
         className = jackTokenizer.identifier();
         checkForSymbol('{');
         compileClassVarDec();
-        compileSubroutine();
+        int subroutines = compileSubroutine();
         checkForSymbol('}');
         if (jackTokenizer.hasMoreTokens()){
             throw new IllegalStateException("Should be end of file. next token: " + jackTokenizer.getCurrentToken());
         }
+        int classNode = ast.add(Ast.CLASS, ast.text(className), subroutines, symbolTable.varCount(Symbol.KIND.FIELD));
+
+        if (folding) {
+            new ConstantFolder(ast).fold(classNode);
+        }
+        statics = symbolTable.varCount(Symbol.KIND.STATIC);
+        if (poolingStrings) {
+            StringPool stringPool = new StringPool(ast, statics);
+            stringPool.pool(classNode);
+            statics += stringPool.count();
+        }
+        CodeGenerator codeGenerator = new CodeGenerator(ast, vmWriter);
+        codeGenerator.setArrayAddressing(arrayAddressing);
+        codeGenerator.setBranchConditions(branchConditions);
+        codeGenerator.generate(classNode);
         vmWriter.close();
     }
 
@@ -85,24 +135,19 @@ public class CompilationEngine {
      * - Exception for invalid syntax.
      */
     private void compileClassVarDec(){
-        jackTokenizer.advance();
-
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
-                && jackTokenizer.symbol() == '}')
+        JackTokenizer.KEYWORD next = jackTokenizer.peekKeyWord(0);
+        if (jackTokenizer.peekSymbol(0) == '}'
+                || next == JackTokenizer.KEYWORD.CONSTRUCTOR
+                || next == JackTokenizer.KEYWORD.FUNCTION
+                || next == JackTokenizer.KEYWORD.METHOD)
         {
-            jackTokenizer.movePointerBack();
             return;
         }
+
+        jackTokenizer.advance();
         if (jackTokenizer.tokenType() != JackTokenizer.TYPE.KEYWORD){
             throwError("Keywords instead of " + jackTokenizer.getCurrentToken());
         }
-        if (jackTokenizer.keyWord() == JackTokenizer.KEYWORD.CONSTRUCTOR
-                || jackTokenizer.keyWord() == JackTokenizer.KEYWORD.FUNCTION
-                || jackTokenizer.keyWord() == JackTokenizer.KEYWORD.METHOD)
-        {
-            jackTokenizer.movePointerBack();
-            return;
-        }
         if (jackTokenizer.keyWord() != JackTokenizer.KEYWORD.STATIC
                 && jackTokenizer.keyWord() != JackTokenizer.KEYWORD.FIELD)
         {
@@ -145,23 +190,25 @@ public class CompilationEngine {
      * - Parses the subroutine type, return type, name, and parameter list.
      * - Initializes a new subroutine symbol table and handles `this` for methods.
      * - Compiles the subroutine body, including variable declarations and statements.
+     * - Recursively processes the following subroutines of the class.
      *
      * Example:
      * Input: `function void myFunction(int x) { var int y; let y = x; }`
-     * Output: Symbol table updated, VM code generated for the function.
+     * Output: Symbol table updated, a FUNCTION node with the statements of its body.
+     *
+     * Returns:
+     * - The list of the subroutines, -1 at the end of the class.
      *
      * Throws:
      * - Exception for invalid syntax.
      */
-    private void compileSubroutine() {
-        jackTokenizer.advance();
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
-                && jackTokenizer.symbol() == '}')
-        {
-            jackTokenizer.movePointerBack();
-            return;
+    private int compileSubroutine() {
+        if (jackTokenizer.peekSymbol(0) == '}') {
+            return -1;
         }
 
+        jackTokenizer.advance();
+
         if (jackTokenizer.tokenType() != JackTokenizer.TYPE.KEYWORD
                 || (jackTokenizer.keyWord() != JackTokenizer.KEYWORD.CONSTRUCTOR
                 && jackTokenizer.keyWord() != JackTokenizer.KEYWORD.FUNCTION
@@ -179,14 +226,11 @@ public class CompilationEngine {
         }
 
         String type = "";
-        jackTokenizer.advance();
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.KEYWORD
-                && jackTokenizer.keyWord() == JackTokenizer.KEYWORD.VOID)
-        {
+        if (jackTokenizer.peekKeyWord(0) == JackTokenizer.KEYWORD.VOID) {
+            jackTokenizer.advance();
             type = "void";
         }
         else {
-            jackTokenizer.movePointerBack();
             type = compileType();
         }
 
@@ -196,62 +240,21 @@ public class CompilationEngine {
             throwError("subroutineName  instead of " + jackTokenizer.getCurrentToken());
         }
 
-        subroutineName = jackTokenizer.identifier();
+        String subroutineName = jackTokenizer.identifier();
         checkForSymbol('(');
         compileParameterList();
         checkForSymbol(')');
-        compileSubroutineBody(keyword);
-        compileSubroutine();
-    }
 
-    /**
-     * Compiles the body of a subroutine.
-     *
-     * - Parses variable declarations and statements within `{}`.
-     * - Writes the function declaration in VM code.
-     * - Handles initialization for `METHOD` and `CONSTRUCTOR` types.
-     *
-     * Example:
-     * Input: `{ var int x; let x = 5; return; }`
-     * Output: Symbol table updated, VM code written for the body.
-     *
-     * Throws:
-     * - Exception for invalid syntax.
-     */
-    private void compileSubroutineBody(JackTokenizer.KEYWORD keyword)
-    {
+        int kind = keyword == JackTokenizer.KEYWORD.CONSTRUCTOR ? Ast.CONSTRUCTOR
+                : keyword == JackTokenizer.KEYWORD.METHOD ? Ast.METHOD : Ast.FUNCTION;
         checkForSymbol('{');
         compileVarDec();
-        wrtieFunctionDec(keyword);
-        compileStatement();
+        int statements = compileStatement();
         checkForSymbol('}');
-    }
+        int subroutine = ast.add(kind, ast.text(subroutineName), statements, symbolTable.varCount(Symbol.KIND.VAR));
 
-    /**
-     * Writes the function declaration and handles initialization for methods or constructors.
-     *
-     * - Outputs the function VM code with the correct local variable count.
-     * - Initializes the `this` pointer for methods or allocates memory for constructors.
-     *
-     * Example:
-     * Input: `METHOD` -> Pushes argument 0 as `this`.
-     *        `CONSTRUCTOR` -> Allocates memory for fields.
-     *
-     * Throws:
-     * - Exception for invalid subroutine type.
-     */
-    private void wrtieFunctionDec(JackTokenizer.KEYWORD keyword)
-    {
-        vmWriter.writeFunction(currentFunctionName(), symbolTable.varCount(Symbol.KIND.VAR));
-        if (keyword == JackTokenizer.KEYWORD.METHOD){
-            vmWriter.writePush(VMWriter.SEGMENT.ARG, 0);
-            vmWriter.writePop(VMWriter.SEGMENT.POINTER,0);
-        }
-        else if (keyword == JackTokenizer.KEYWORD.CONSTRUCTOR){
-            vmWriter.writePush(VMWriter.SEGMENT.CONST, symbolTable.varCount(Symbol.KIND.FIELD));
-            vmWriter.writeCall("Memory.alloc", 1);
-            vmWriter.writePop(VMWriter.SEGMENT.POINTER,0);
-        }
+        ast.setNext(subroutine, compileSubroutine());
+        return subroutine;
     }
 
     /**
@@ -262,20 +265,22 @@ public class CompilationEngine {
      *
      * Example:
      * Input: `let x = 5; if (x > 0) { do something(); } return;`
-     * Output: VM code generated for each statement.
+     * Output: A LET, an IF and a RETURN node, in a list.
+     *
+     * Returns:
+     * - The list of the statements, -1 at the end of the block.
      *
      * Throws:
      * - Exception for unrecognized statement types.
      */
-    private void compileStatement(){
-        jackTokenizer.advance();
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
-                && jackTokenizer.symbol() == '}')
-        {
-            jackTokenizer.movePointerBack();
-            return;
+    private int compileStatement(){
+        if (jackTokenizer.peekSymbol(0) == '}') {
+            return -1;
         }
 
+        jackTokenizer.advance();
+
+        int statement = -1;
         if (jackTokenizer.tokenType() != JackTokenizer.TYPE.KEYWORD)
         {
             throwError("keyword instead of " + jackTokenizer.getCurrentToken());
@@ -284,20 +289,21 @@ public class CompilationEngine {
             switch (jackTokenizer.keyWord())
             {
                 case LET:
-                    compileLet();break;
+                    statement = compileLet();break;
                 case IF:
-                    compileIf();break;
+                    statement = compileIf();break;
                 case WHILE:
-                    compilesWhile();break;
+                    statement = compilesWhile();break;
                 case DO:
-                    compileDo();break;
+                    statement = compileDo();break;
                 case RETURN:
-                    compileReturn();break;
+                    statement = compileReturn();break;
                 default:
                     throwError("should be let | if | while | do | return instead of " + jackTokenizer.getCurrentToken());
             }
         }
-        compileStatement();
+        ast.setNext(statement, compileStatement());
+        return statement;
     }
 
     /**
@@ -315,16 +321,11 @@ public class CompilationEngine {
      */
     private void compileParameterList()
     {
-        jackTokenizer.advance();
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
-                && jackTokenizer.symbol() == ')')
-        {
-            jackTokenizer.movePointerBack();
+        if (jackTokenizer.peekSymbol(0) == ')') {
             return;
         }
 
         String type = "";
-        jackTokenizer.movePointerBack();
         do {
             type = compileType();
             jackTokenizer.advance();
@@ -333,18 +334,16 @@ public class CompilationEngine {
                 throwError("identifier instead of " + jackTokenizer.getCurrentToken());
             }
             symbolTable.define(jackTokenizer.identifier(),type, Symbol.KIND.ARG);
-            jackTokenizer.advance();
+            if (jackTokenizer.peekSymbol(0) == ')'){
+                break;
+            }
 
+            jackTokenizer.advance();
             if (jackTokenizer.tokenType() != JackTokenizer.TYPE.SYMBOL
-                    || (jackTokenizer.symbol() != ',' && jackTokenizer.symbol() != ')'))
+                    || jackTokenizer.symbol() != ',')
             {
                 throwError("',' or ')' instead of " + jackTokenizer.getCurrentToken());
             }
-
-            if (jackTokenizer.symbol() == ')'){
-                jackTokenizer.movePointerBack();
-                break;
-            }
         }
         while(true);
     }
@@ -364,13 +363,10 @@ public class CompilationEngine {
      * - Exception for invalid syntax.
      */
     private void compileVarDec(){
-        jackTokenizer.advance();
-        if (jackTokenizer.tokenType() != JackTokenizer.TYPE.KEYWORD
-                || jackTokenizer.keyWord() != JackTokenizer.KEYWORD.VAR)
-        {
-            jackTokenizer.movePointerBack();
+        if (jackTokenizer.peekKeyWord(0) != JackTokenizer.KEYWORD.VAR) {
             return;
         }
+        jackTokenizer.advance();
         String type = compileType();
         do {
             jackTokenizer.advance();
@@ -397,37 +393,35 @@ public class CompilationEngine {
     /**
      * Compiles a `do` statement.
      *
-     * - Parses and compiles a subroutine call.
-     * - Discards the return value by popping it into `temp 0`.
+     * - Parses and compiles a subroutine call, whose return value is discarded.
      *
      * Example:
      * Input: `do myFunction(5);`
-     * Output: VM code for calling `myFunction`.
+     * Output: A DO node with the CALL of `myFunction`.
      *
      * Throws:
      * - Exception for invalid syntax.
      */
-    private void compileDo() {
-        compileSubroutineCall();
+    private int compileDo() {
+        int call = compileSubroutineCall();
         checkForSymbol(';');
-        vmWriter.writePop(VMWriter.SEGMENT.TEMP,0);
+        return ast.add(Ast.DO, call, 0, 0);
     }
 
      /**
      * Compiles a subroutine call.
      *
      * - Handles calls in both `object.method()` and `function()` formats.
-     * - Resolves the object type and pushes `this` if required.
-     * - Generates VM code for the call and tracks argument counts.
+     * - Resolves the object type and passes `this` or the object if required.
      *
      * Example:
      * Input: `do obj.method(x, y);`
-     * Output: VM code for calling `obj.method`.
+     * Output: A CALL node of `Type.method` on the variable `obj`, with the arguments `x` and `y`.
      *
      * Throws:
      * - Exception for invalid syntax.
      */
-    private void compileSubroutineCall() {
+    private int compileSubroutineCall() {
         jackTokenizer.advance();
 
         if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
@@ -435,17 +429,18 @@ public class CompilationEngine {
         }
 
         String name = jackTokenizer.identifier();
-        int nargs = 0;
+        int object = -1;
+        int arguments = -1;
 
         jackTokenizer.advance();
 
         if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
                 && jackTokenizer.symbol() == '(')
         {
-            vmWriter.writePush(VMWriter.SEGMENT.POINTER,0);
-            nargs = compileExpressionList() + 1;
+            object = ast.add(Ast.THIS, 0, 0, 0);
+            arguments = compileExpressionList();
             checkForSymbol(')');
-            vmWriter.writeCall(className + '.' + name, nargs);
+            name = className + '.' + name;
         }
         else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
                 && jackTokenizer.symbol() == '.')
@@ -472,35 +467,33 @@ public class CompilationEngine {
                 name = objName + "." + name;
             }
             else {
-                nargs = 1;
-                vmWriter.writePush(getSeg(symbolTable.kindOf(objName)), symbolTable.indexOf(objName));
-                name = symbolTable.typeOf(objName) + "." + name;
+                object = variable(objName);
+                name = type + "." + name;
             }
 
             checkForSymbol('(');
-            nargs += compileExpressionList();
+            arguments = compileExpressionList();
             checkForSymbol(')');
-            vmWriter.writeCall(name,nargs);
         }
         else {
             throwError("'('|'.' instead of " + jackTokenizer.getCurrentToken());
         }
+        return ast.add(Ast.CALL, ast.text(name), object, arguments);
     }
 
     /**
      * Compiles a `let` statement.
      *
      * - Parses variable assignment, including optional array indexing.
-     * - Generates VM code to compute the target address and assign the value.
      *
      * Example:
      * Input: `let a[i] = 8;`
-     * Output: VM code for computing `a[i]` and assigning `8`.
+     * Output: A LET node of the ARRAY entry `a[i]` and the CONSTANT `8`.
      *
      * Throws:
      * - Exception for invalid syntax.
      */
-    private void compileLet(){
+    private int compileLet(){
         jackTokenizer.advance();
         if (jackTokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER)
         {
@@ -516,327 +509,203 @@ public class CompilationEngine {
             throwError("'['|'=' instead of " + jackTokenizer.getCurrentToken());
         }
 
-        boolean expresExist = false;
+        int target = variable(varName);
         if (jackTokenizer.symbol() == '[')
         {
-            expresExist = true;
-            vmWriter.writePush(getSeg(symbolTable.kindOf(varName)), symbolTable.indexOf(varName));
-            compileExpression();
+            int index = compileExpression();
             checkForSymbol(']');
-            vmWriter.writeArithmetic(VMWriter.COMMAND.ADD);
-        }
-
-        if (expresExist) {
+            target = ast.add(Ast.ARRAY, target, index, 0);
             jackTokenizer.advance();
         }
 
-        compileExpression();
+        int expression = compileExpression();
         checkForSymbol(';');
-
-        if (expresExist)
-        {
-            vmWriter.writePop(VMWriter.SEGMENT.TEMP,0);
-            vmWriter.writePop(VMWriter.SEGMENT.POINTER,1);
-            vmWriter.writePush(VMWriter.SEGMENT.TEMP,0);
-            vmWriter.writePop(VMWriter.SEGMENT.THAT,0);
-        }
-        else {
-            vmWriter.writePop(getSeg(symbolTable.kindOf(varName)), symbolTable.indexOf(varName));
-        }
+        return ast.add(Ast.LET, target, expression, 0);
     }
-    
+
     /**
-     * Maps a symbol kind to its corresponding VM segment.
-     *
-     * - Converts `FIELD`, `STATIC`, `VAR`, and `ARG` to `this`, `static`, `local`, and `argument`.
+     * Resolves a variable to its segment and index.
      *
      * Example:
-     * Input: `Symbol.KIND.FIELD`
-     * Output: `VMWriter.SEGMENT.THIS`
-     *
-     * Returns:
-     * - `VMWriter.SEGMENT.NONE` for unrecognized kinds.
+     * Input: `x`, a local variable declared second
+     * Output: A VARIABLE node of `local 1`.
      */
-    private VMWriter.SEGMENT getSeg(Symbol.KIND kind){
-        return switch (kind) {
-            case FIELD -> VMWriter.SEGMENT.THIS;
-            case STATIC -> VMWriter.SEGMENT.STATIC;
-            case VAR -> VMWriter.SEGMENT.LOCAL;
-            case ARG -> VMWriter.SEGMENT.ARG;
-            default -> VMWriter.SEGMENT.NONE;
-        };
+    private int variable(String name) {
+        int binding = symbolTable.lookup(name);
+        return ast.add(Ast.VARIABLE, SymbolTable.bindingSegment(binding).ordinal(), SymbolTable.bindingIndex(binding), 0);
     }
 
     /**
      * Compiles a `while` statement.
      *
-     * - Generates unique labels for the loop condition and end.
-     * - Writes VM code for evaluating the condition and looping if true.
+     * - Parses the loop condition and body.
      *
      * Example:
      * Input: `while (x > 0) { let x = x - 1; }`
-     * Output: VM code for the loop condition and body.
+     * Output: A WHILE node of the condition and the statements of the body.
      *
      * Throws:
      * - Exception for invalid syntax.
      */
-    private void compilesWhile(){
-        String firstLabel = newLabel();
-        String secondLabel = newLabel();
-        vmWriter.writeLabel(secondLabel);
-
+    private int compilesWhile(){
         checkForSymbol('(');
-        compileExpression();
+        int condition = compileExpression();
         checkForSymbol(')');
 
-        vmWriter.writeArithmetic(VMWriter.COMMAND.NOT);
-        vmWriter.writeIf(firstLabel);
-
         checkForSymbol('{');
-        compileStatement();
+        int statements = compileStatement();
         checkForSymbol('}');
-
-        vmWriter.writeGoto(secondLabel);
-        vmWriter.writeLabel(firstLabel);
+        return ast.add(Ast.WHILE, condition, statements, 0);
     }
 
     /**
      * Compiles a `return` statement.
      *
      * - Handles both `return;` and `return expression;`.
-     * - Pushes `0` for void returns or evaluates and returns an expression.
      *
      * Example:
      * Input: `return x + 1;`
-     * Output: VM code to compute `x + 1` and return it.
+     * Output: A RETURN node of the expression `x + 1`.
      *
      * Throws:
      * - Exception for invalid syntax.
      */
-    private void compileReturn(){
-        jackTokenizer.advance();
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
-                && jackTokenizer.symbol() == ';')
-        {
-            vmWriter.writePush(VMWriter.SEGMENT.CONST,0);
+    private int compileReturn(){
+        int expression = -1;
+        if (jackTokenizer.peekSymbol(0) == ';') {
+            jackTokenizer.advance();
         }
         else {
-            jackTokenizer.movePointerBack();
-            compileExpression();
+            expression = compileExpression();
             checkForSymbol(';');
         }
-
-        vmWriter.writeReturn();
+        return ast.add(Ast.RETURN, expression, 0, 0);
     }
 
     /**
      * Compiles an `if` statement, optionally with an `else` clause.
      *
-     * - Generates unique labels for the `else` and `end` branches.
-     * - Writes VM code to evaluate the condition and execute the appropriate block.
+     * - Parses the condition, the `if` body and the `else` body.
      *
      * Example:
      * Input: `if (x > 0) { let x = x - 1; } else { let x = 0; }`
-     * Output: VM code for the condition, `if` body, and `else` body.
+     * Output: An IF node of the condition, `if` body, and `else` body.
      *
      * Throws:
      * - Exception for invalid syntax.
      */
-    private void compileIf(){
-        String elseLabel = newLabel();
-        String endLabel = newLabel();
-
+    private int compileIf(){
         checkForSymbol('(');
-        compileExpression();
+        int condition = compileExpression();
         checkForSymbol(')');
 
-        vmWriter.writeArithmetic(VMWriter.COMMAND.NOT);
-        vmWriter.writeIf(elseLabel);
-
         checkForSymbol('{');
-        compileStatement();
+        int statements = compileStatement();
         checkForSymbol('}');
 
-        vmWriter.writeGoto(endLabel);
-        vmWriter.writeLabel(elseLabel);
-
-        jackTokenizer.advance();
-
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.KEYWORD
-                && jackTokenizer.keyWord() == JackTokenizer.KEYWORD.ELSE)
-        {
+        int elseStatements = -1;
+        if (jackTokenizer.peekKeyWord(0) == JackTokenizer.KEYWORD.ELSE) {
+            jackTokenizer.advance();
             checkForSymbol('{');
-            compileStatement();
+            elseStatements = compileStatement();
             checkForSymbol('}');
         }
-        else {
-            jackTokenizer.movePointerBack();
-        }
-
-        vmWriter.writeLabel(endLabel);
+        return ast.add(Ast.IF, condition, statements, elseStatements);
     }
 
     /**
      * Compiles a single term in an expression.
      *
      * - Handles constants, variables, array access, subroutine calls, expressions in parentheses, and unary operators.
-     * - Generates appropriate VM code for each term type.
      *
      * Example:
      * Input: `5`, `x[i]`, `-y`, `(x + 1)`
-     * Output: VM code to evaluate the term.
+     * Output: A CONSTANT, an ARRAY entry, a UNARY and a BINARY node; parentheses make no node.
      *
      * Throws:
      * - Exception for invalid syntax.
      */
-    private void compileTerm() {
+    private int compileTerm() {
+        // An identifier starts a variable, an array entry or a subroutine call, told apart by the token after it
+        if (jackTokenizer.peek(0) == JackTokenizer.TYPE.IDENTIFIER
+                && (jackTokenizer.peekSymbol(1) == '(' || jackTokenizer.peekSymbol(1) == '.'))
+        {
+            return compileSubroutineCall();
+        }
+
         jackTokenizer.advance();
 
         if (jackTokenizer.tokenType() == JackTokenizer.TYPE.IDENTIFIER) {
-            String tempId = jackTokenizer.identifier();
-            jackTokenizer.advance();
-
-            if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
-                    && jackTokenizer.symbol() == '[')
-            {
-                vmWriter.writePush(getSeg(symbolTable.kindOf(tempId)), symbolTable.indexOf(tempId));
+            int variable = variable(jackTokenizer.identifier());
 
-                compileExpression();
+            if (jackTokenizer.peekSymbol(0) == '[') {
+                jackTokenizer.advance();
+                int index = compileExpression();
                 checkForSymbol(']');
-
-                vmWriter.writeArithmetic(VMWriter.COMMAND.ADD);
-                vmWriter.writePop(VMWriter.SEGMENT.POINTER,1);
-                vmWriter.writePush(VMWriter.SEGMENT.THAT,0);
-            }
-            else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
-                    && (jackTokenizer.symbol() == '(' || jackTokenizer.symbol() == '.'))
-            {
-                jackTokenizer.movePointerBack();
-                jackTokenizer.movePointerBack();
-                compileSubroutineCall();
-            }
-            else {
-                jackTokenizer.movePointerBack();
-                vmWriter.writePush(getSeg(symbolTable.kindOf(tempId)), symbolTable.indexOf(tempId));
+                return ast.add(Ast.ARRAY, variable, index, 0);
             }
+            return variable;
         }
-        else {
-            if (jackTokenizer.tokenType() == JackTokenizer.TYPE.INT_CONST) {
-                vmWriter.writePush(VMWriter.SEGMENT.CONST, jackTokenizer.intVal());
-            }
-            else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.STRING_CONST) {
-                String str = jackTokenizer.stringVal();
-
-                vmWriter.writePush(VMWriter.SEGMENT.CONST,str.length());
-                vmWriter.writeCall("String.new",1);
 
-                for (int i = 0; i < str.length(); i++) {
-                    vmWriter.writePush(VMWriter.SEGMENT.CONST,(int)str.charAt(i));
-                    vmWriter.writeCall("String.appendChar",2);
-                }
-            }
-            else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.KEYWORD
-                    && jackTokenizer.keyWord() == JackTokenizer.KEYWORD.TRUE)
-            {
-                vmWriter.writePush(VMWriter.SEGMENT.CONST,1);
-                vmWriter.writeArithmetic(VMWriter.COMMAND.NEG);
-            }
-            else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.KEYWORD
-                    && jackTokenizer.keyWord() == JackTokenizer.KEYWORD.THIS)
-            {
-                vmWriter.writePush(VMWriter.SEGMENT.POINTER,0);
-            }
-            else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.KEYWORD
-                    && (jackTokenizer.keyWord() == JackTokenizer.KEYWORD.FALSE
-                        || jackTokenizer.keyWord() == JackTokenizer.KEYWORD.NULL))
-            {
-                vmWriter.writePush(VMWriter.SEGMENT.CONST,0);
-            }
-            else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
-                    && jackTokenizer.symbol() == '(')
-            {
-                compileExpression();
-                checkForSymbol(')');
-            }
-            else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
-                    && (jackTokenizer.symbol() == '-' || jackTokenizer.symbol() == '~'))
-            {
-                char symbol = jackTokenizer.symbol();
-
-                compileTerm();
-
-                if (symbol == '-') {
-                    vmWriter.writeArithmetic(VMWriter.COMMAND.NEG);
-                }
-                else {
-                    vmWriter.writeArithmetic(VMWriter.COMMAND.NOT);
-                }
-            }
-            else {
-                throwError("integerConstant | stringConstant | keywordConstant | '(' expression ')' | unaryOp term instead of " + jackTokenizer.getCurrentToken());
-            }
+        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.INT_CONST) {
+            return ast.add(Ast.CONSTANT, jackTokenizer.intVal(), 0, 0);
+        }
+        else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.STRING_CONST) {
+            return ast.add(Ast.STRING, ast.text(jackTokenizer.stringVal()), 0, 0);
+        }
+        else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.KEYWORD
+                && jackTokenizer.keyWord() == JackTokenizer.KEYWORD.TRUE)
+        {
+            return ast.add(Ast.CONSTANT, -1, 0, 0);
+        }
+        else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.KEYWORD
+                && jackTokenizer.keyWord() == JackTokenizer.KEYWORD.THIS)
+        {
+            return ast.add(Ast.THIS, 0, 0, 0);
         }
+        else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.KEYWORD
+                && (jackTokenizer.keyWord() == JackTokenizer.KEYWORD.FALSE
+                    || jackTokenizer.keyWord() == JackTokenizer.KEYWORD.NULL))
+        {
+            return ast.add(Ast.CONSTANT, 0, 0, 0);
+        }
+        else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
+                && jackTokenizer.symbol() == '(')
+        {
+            int expression = compileExpression();
+            checkForSymbol(')');
+            return expression;
+        }
+        else if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
+                && (jackTokenizer.symbol() == '-' || jackTokenizer.symbol() == '~'))
+        {
+            char symbol = jackTokenizer.symbol();
+            return ast.add(Ast.UNARY, symbol, compileTerm(), 0);
+        }
+        throwError("integerConstant | stringConstant | keywordConstant | '(' expression ')' | unaryOp term instead of " + jackTokenizer.getCurrentToken());
+        return -1;
     }
 
     /**
      * Compiles an expression.
      *
-     * - Parses terms and binary operators (`+`, `-`, `*`, `/`, etc.).
-     * - Generates VM code for evaluating the expression.
+     * - Parses terms and binary operators (`+`, `-`, `*`, `/`, etc.), which apply from left to right.
      *
      * Example:
      * Input: `x + (y * 2)`
-     * Output: VM code for computing `x + (y * 2)`.
+     * Output: A BINARY `+` node of `x` and the BINARY `*` node of `y` and `2`.
      *
      * Throws:
-     * - Exception for invalid syntax or unknown operators.
+     * - Exception for invalid syntax.
      */
-    private void compileExpression(){
-        compileTerm();
-        do {
+    private int compileExpression(){
+        int expression = compileTerm();
+        while (JackTokenizer.isOp(jackTokenizer.peekSymbol(0))) {
             jackTokenizer.advance();
-            if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL && jackTokenizer.isOp()) {
-                String operand = "";
-                switch (jackTokenizer.symbol()){
-                    case '+':
-                        operand = "add";
-                        break;
-                    case '-':
-                        operand = "sub";
-                        break;
-                    case '*':
-                        operand = "call Math.multiply 2";
-                        break;
-                    case '/':
-                        operand = "call Math.divide 2";
-                        break;
-                    case '<':
-                        operand = "lt";
-                        break;
-                    case '>':
-                        operand = "gt";
-                        break;
-                    case '=':
-                        operand = "eq";
-                        break;
-                    case '&':
-                        operand = "and";
-                        break;
-                    case '|':
-                        operand = "or";
-                        break;
-                    default:
-                        throwError("Unknown op! received " + jackTokenizer.symbol());
-                }
-                compileTerm();
-                vmWriter.writeCommand(operand,"","");
-            }
-            else {
-                jackTokenizer.movePointerBack();
-                break;
-            }
+            char op = jackTokenizer.symbol();
+            expression = ast.add(Ast.BINARY, op, expression, compileTerm());
         }
-        while (true);
+        return expression;
     }
 
     /**
@@ -847,42 +716,28 @@ public class CompilationEngine {
      *
      * Example:
      * Input: `(x, y + 1, 5)`
-     * Output: VM code for evaluating `x`, `y + 1`, and `5`.
+     * Output: The expressions `x`, `y + 1`, and `5`, in a list.
      *
      * Returns:
-     * - The number of expressions compiled (used for subroutine calls).
+     * - The list of the expressions (the arguments of a subroutine call), -1 if it is empty.
      *
      * Throws:
      * - Exception for invalid syntax.
      */
     private int compileExpressionList(){
-        int nargs = 0;
-        jackTokenizer.advance();
-        if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
-                && jackTokenizer.symbol() == ')')
-        {
-            jackTokenizer.movePointerBack();
+        if (jackTokenizer.peekSymbol(0) == ')') {
+            return -1;
         }
-        else {
-            nargs = 1;
-            jackTokenizer.movePointerBack();
-            compileExpression();
-            do {
-                jackTokenizer.advance();
-                if (jackTokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL
-                        && jackTokenizer.symbol() == ',')
-                {
-                    compileExpression();
-                    nargs++;
-                }
-                else {
-                    jackTokenizer.movePointerBack();
-                    break;
-                }
-            }
-            while (true);
+
+        int first = compileExpression();
+        int last = first;
+        while (jackTokenizer.peekSymbol(0) == ',') {
+            jackTokenizer.advance();
+            int expression = compileExpression();
+            ast.setNext(last, expression);
+            last = expression;
         }
-        return nargs;
+        return first;
     }
 
     /**
@@ -948,20 +803,4 @@ public class CompilationEngine {
         }
     }
 
-    /**
-     * Generates a unique label for VM code.
-     *
-     * - Combines the class name with an incrementing counter for uniqueness.
-     *
-     * Example:
-     * Output: `ClassName_0`, `ClassName_1`, etc.
-     *
-     * Returns:
-     * - A unique string label.
-     */
-    private String newLabel(){
-        return className + "_" + (labelCounter++);
-    }
-
 }
-
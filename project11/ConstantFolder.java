@@ -0,0 +1,248 @@
+/**
+ * The ConstantFolder class simplifies the expressions of a class's Ast before its code is generated.
+ *
+ * - Evaluates operators whose operands are constants, with Jack's 16-bit arithmetic, so that
+ *   `2 * 3` is the constant 6 and `1 - 2` is -1.
+ * - Drops operations that leave their operand as it is: `x + 0`, `x - 0`, `x * 1`, `x / 1`,
+ *   `x | 0`, `x & -1`, `-(-x)` and `~(~x)`.
+ * - Turns multiplications by 0 into 0, when the other operand has no side effects, and
+ *   multiplications by a power of two into DOUBLE nodes, which add the operand to itself
+ *   instead of calling Math.multiply.
+ * - Adds up the constants of sums, so that `x + 1 + 2` is `x + 3`.
+ *
+ * Division is folded only when the OS's Math.divide would give the same result, so a division by
+ * zero is left for Math.divide to report.
+ */
+public class ConstantFolder {
+    private Ast ast;
+
+    public ConstantFolder(Ast ast) {
+        this.ast = ast;
+    }
+
+    /**
+     * Folds the expressions of every subroutine of a class.
+     */
+    public void fold(int classNode) {
+        for (int subroutine = ast.b(classNode); subroutine != -1; subroutine = ast.next(subroutine)) {
+            foldStatements(ast.b(subroutine));
+        }
+    }
+
+    private void foldStatements(int statement) {
+        for (; statement != -1; statement = ast.next(statement)) {
+            switch (ast.kind(statement)) {
+                case Ast.LET:
+                    if (ast.kind(ast.a(statement)) == Ast.ARRAY) {
+                        foldExpression(ast.b(ast.a(statement)));
+                    }
+                    foldExpression(ast.b(statement));
+                    break;
+                case Ast.IF:
+                    foldExpression(ast.a(statement));
+                    foldStatements(ast.b(statement));
+                    foldStatements(ast.c(statement));
+                    break;
+                case Ast.WHILE:
+                    foldExpression(ast.a(statement));
+                    foldStatements(ast.b(statement));
+                    break;
+                case Ast.DO:
+                    foldExpression(ast.a(statement));
+                    break;
+                case Ast.RETURN:
+                    if (ast.a(statement) != -1) {
+                        foldExpression(ast.a(statement));
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Folds an expression in place, after its operands.
+     */
+    private void foldExpression(int expression) {
+        switch (ast.kind(expression)) {
+            case Ast.ARRAY:
+                foldExpression(ast.b(expression));
+                break;
+
+            case Ast.CALL:
+                if (ast.b(expression) != -1) {
+                    foldExpression(ast.b(expression));
+                }
+                for (int argument = ast.c(expression); argument != -1; argument = ast.next(argument)) {
+                    foldExpression(argument);
+                }
+                break;
+
+            case Ast.UNARY:
+                foldExpression(ast.b(expression));
+                foldUnary(expression);
+                break;
+
+            case Ast.BINARY:
+                foldExpression(ast.b(expression));
+                foldExpression(ast.c(expression));
+                foldBinary(expression);
+                break;
+        }
+    }
+
+    private void foldUnary(int expression) {
+        char op = (char) ast.a(expression);
+        int operand = ast.b(expression);
+
+        if (isConstant(operand)) {
+            int value = ast.a(operand);
+            setConstant(expression, op == '-' ? -value : ~value);
+        }
+        else if (ast.kind(operand) == Ast.UNARY && ast.a(operand) == op) {
+            // -(-x) and ~(~x)
+            copy(expression, ast.b(operand));
+        }
+    }
+
+    private void foldBinary(int expression) {
+        char op = (char) ast.a(expression);
+        int left = ast.b(expression);
+        int right = ast.c(expression);
+
+        if (isConstant(left) && isConstant(right)) {
+            int a = ast.a(left);
+            int b = ast.a(right);
+            switch (op) {
+                case '+': setConstant(expression, a + b); return;
+                case '-': setConstant(expression, a - b); return;
+                case '*': setConstant(expression, a * b); return;
+                case '&': setConstant(expression, a & b); return;
+                case '|': setConstant(expression, a | b); return;
+                case '<': setConstant(expression, a < b ? -1 : 0); return;
+                case '>': setConstant(expression, a > b ? -1 : 0); return;
+                case '=': setConstant(expression, a == b ? -1 : 0); return;
+                case '/':
+                    // Math.divide reports a division by zero, and can't negate -32768
+                    if (b != 0 && a != -32768 && b != -32768) {
+                        setConstant(expression, a / b);
+                        return;
+                    }
+                    break;
+            }
+        }
+
+        // The constant, if any, goes on the right of the operators that commute. A constant has
+        // no side effects, so it can be computed after the other operand.
+        if (isConstant(left) && (op == '+' || op == '*' || op == '&' || op == '|')) {
+            ast.replace(expression, Ast.BINARY, op, right, left);
+            left = right;
+            right = ast.c(expression);
+        }
+        if (!isConstant(right)) {
+            return;
+        }
+        int value = ast.a(right);
+
+        switch (op) {
+            case '+':
+                if (value == 0) {
+                    copy(expression, left);
+                }
+                else if (ast.kind(left) == Ast.BINARY && ast.a(left) == '+' && isConstant(ast.c(left))) {
+                    // (x + a) + b is x + (a + b), as additions wrap around
+                    int sum = ast.c(left);
+                    setConstant(sum, ast.a(sum) + value);
+                    copy(expression, left);
+                    foldBinary(expression);
+                }
+                break;
+
+            case '-':
+                if (value == 0) {
+                    copy(expression, left);
+                }
+                break;
+
+            case '*':
+                if (value == 1) {
+                    copy(expression, left);
+                }
+                else if (value == 0 && isPure(left)) {
+                    setConstant(expression, 0);
+                }
+                else if (value > 0 && (value & (value - 1)) == 0) {
+                    // x * 2^k is x doubled k times, and wraps around the same way
+                    ast.replace(expression, Ast.DOUBLE, Integer.numberOfTrailingZeros(value), left, 0);
+                }
+                break;
+
+            case '/':
+                if (value == 1) {
+                    copy(expression, left);
+                }
+                break;
+
+            case '&':
+                if (value == -1) {
+                    copy(expression, left);
+                }
+                else if (value == 0 && isPure(left)) {
+                    setConstant(expression, 0);
+                }
+                break;
+
+            case '|':
+                if (value == 0) {
+                    copy(expression, left);
+                }
+                else if (value == -1 && isPure(left)) {
+                    setConstant(expression, -1);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Returns whether a node is a constant in the range of Jack's values. An integer constant over
+     * 32767 is left alone, for the VM translator to report.
+     */
+    private boolean isConstant(int node) {
+        return ast.kind(node) == Ast.CONSTANT && ast.a(node) >= -32768 && ast.a(node) <= 32767;
+    }
+
+    /**
+     * Returns whether an expression can be left out without changing what the program does:
+     * it calls nothing and makes no string.
+     */
+    private boolean isPure(int node) {
+        switch (ast.kind(node)) {
+            case Ast.CONSTANT:
+            case Ast.THIS:
+            case Ast.VARIABLE:
+                return true;
+            case Ast.ARRAY:
+            case Ast.UNARY:
+            case Ast.DOUBLE:
+                return isPure(ast.b(node));
+            case Ast.BINARY:
+                // Math.divide reports a division by zero
+                return ast.a(node) != '/' && isPure(ast.b(node)) && isPure(ast.c(node));
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Makes a node the constant value, wrapped around to 16 bits.
+     */
+    private void setConstant(int node, int value) {
+        ast.replace(node, Ast.CONSTANT, (short) value, 0, 0);
+    }
+
+    /**
+     * Makes a node the same as another, which then is not used any more.
+     */
+    private void copy(int node, int from) {
+        ast.replace(node, ast.kind(from), ast.a(from), ast.b(from), ast.c(from));
+    }
+}
@@ -1,7 +1,21 @@
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class JackCompiler {
+    // Optimizations, which Main turns on from the command line
+    public static boolean folding = false;
+    public static boolean poolingStrings = false;
+    public static boolean arrayAddressing = false;
+    public static boolean branchConditions = false;
+
+    // The static variables of the classes compileAll has compiled, added up from its workers
+    private static final AtomicInteger statics = new AtomicInteger();
     
     /**
      * The function goes through all the files in the folder and takes only the .jack files
@@ -19,34 +33,118 @@ public class JackCompiler {
                 result.add(f);
             }
         }
+        // listFiles has no defined order, and errors and timings are reported in this one
+        Collections.sort(result);
         return result;
     }
 
     /**
-     * We receive as input the files in jack language and turn each file in jack into a VM file, with the help of JackTokenizer and CompilationEngine calsses.
-     * At the end we return a VM file for each jack file. 
+     * Returns the .vm file a .jack file compiles into, next to it.
+     */
+    public static File vmFile(File jackFile) {
+        String path = jackFile.getAbsolutePath();
+        return new File(path.substring(0, path.lastIndexOf(".")) + ".vm");
+    }
+
+    /**
+     * Compiles one .jack file into the .vm file next to it, and returns the time it took in nanoseconds.
+     */
+    public static long compile(File jackFile) {
+        long start = System.nanoTime();
+        CompilationEngine compilationEngine = new CompilationEngine(jackFile, vmFile(jackFile));
+        compilationEngine.setFolding(folding);
+        compilationEngine.setStringPooling(poolingStrings);
+        compilationEngine.setArrayAddressing(arrayAddressing);
+        compilationEngine.setBranchConditions(branchConditions);
+        compilationEngine.compileClass();
+        statics.addAndGet(compilationEngine.staticCount());
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Compiles a class on a fork-join worker
      */
-    public static void main(String[] args) {
-            String fileInName = args[0];
-            File input = new File(fileInName);
+    private static class CompileTask extends RecursiveAction {
+        // Tasks are never serialized, but ForkJoinTask is Serializable
+        private static final long serialVersionUID = 1L;
+
+        private final File jackFile;
+        private long time;
+        // What the class failed to compile with, kept as it was thrown since join would wrap it
+        private RuntimeException failure;
 
-            String fileOutPath = "";
-            File out;
+        private CompileTask(File jackFile) {
+            this.jackFile = jackFile;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                time = compile(jackFile);
+            }
+            catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+    }
 
-            ArrayList<File> jackFiles = new ArrayList<File>();
+    /**
+     * Compiles every .jack file into its own .vm file. A class compiles on its own, with its own
+     * tokenizer, symbol table and writer, and labels are numbered per class, so the classes are
+     * compiled in parallel on the common fork-join pool and the output is the same as one by one.
+     * If a class fails to compile, the first failure in the order of the files is thrown once all
+     * of them are done.
+     * With string pooling, the classes are taken to be one program, and it is an error if their
+     * static variables don't fit in StringPool.STATIC_BUDGET.
+     * With printStats, prints the time each file took.
+     */
+    public static void compileAll(List<File> jackFiles, boolean printStats) {
+        long start = System.nanoTime();
+        long[] times = new long[jackFiles.size()];
+        statics.set(0);
 
-            if (input.isFile()) {
-                jackFiles.add(input);
+        if (jackFiles.size() == 1) {
+            // Not worth starting the pool's threads for
+            times[0] = compile(jackFiles.get(0));
+        }
+        else {
+            CompileTask[] tasks = new CompileTask[jackFiles.size()];
+            for (int i = 0; i < tasks.length; i++) {
+                tasks[i] = new CompileTask(jackFiles.get(i));
+                ForkJoinPool.commonPool().execute(tasks[i]);
+            }
+            for (CompileTask task : tasks) {
+                task.join();
             }
-            else if (input.isDirectory()) {
-                jackFiles = getJackFiles(input);
+            for (int i = 0; i < tasks.length; i++) {
+                if (tasks[i].failure != null) {
+                    throw tasks[i].failure;
+                }
+                times[i] = tasks[i].time;
             }
+        }
+
+        if (poolingStrings && statics.get() > StringPool.STATIC_BUDGET) {
+            throw new IllegalStateException(jackFiles.size() + " classes with pooled strings need " + statics.get()
+                    + " static variables, more than the " + StringPool.STATIC_BUDGET + " of RAM 16..255");
+        }
 
-            for (File f: jackFiles) {
-                fileOutPath = f.getAbsolutePath().substring(0, f.getAbsolutePath().lastIndexOf(".")) + ".vm";
-                out = new File(fileOutPath);
-                CompilationEngine compilationEngine = new CompilationEngine(f, out);
-                compilationEngine.compileClass();
+        if (printStats) {
+            for (int i = 0; i < times.length; i++) {
+                System.out.println(jackFiles.get(i).getName() + ": " + times[i] / 1000 + " us");
             }
+            int threads = jackFiles.size() == 1 ? 1 : Math.min(jackFiles.size(), ForkJoinPool.getCommonPoolParallelism());
+            System.out.println(jackFiles.size() + " classes in " + (System.nanoTime() - start) / 1_000_000
+                    + " ms on " + threads + " threads");
+        }
+    }
+
+    /**
+     * We receive as input the files in jack language and turn each file in jack into a VM file, with the help of JackTokenizer and CompilationEngine calsses.
+     * At the end we return a VM file for each jack file. 
+     * Takes the same options as Main.
+     */
+    public static void main(String[] args) throws IOException {
+            Main.main(args);
     }
 }
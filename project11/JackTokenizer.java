@@ -1,11 +1,8 @@
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 public class JackTokenizer {
     public static enum TYPE { KEYWORD, SYMBOL, IDENTIFIER, INT_CONST, STRING_CONST, NONE }; // Constant for types.
@@ -14,41 +11,67 @@ public class JackTokenizer {
         VAR, STATIC, FIELD, LET, DO, IF, ELSE, WHILE, RETURN, TRUE, FALSE, NULL, THIS
     };
 
-    private String token;
+    // Character classes of the lexer, by byte value
+    private static final byte OTHER = 0;
+    private static final byte SPACE = 1;
+    private static final byte LETTER = 2;
+    private static final byte DIGIT = 3;
+    private static final byte SYMBOL = 4;
+    private static final byte QUOTE = 5;
+    private static final byte SLASH = 6;
+    private static final byte[] CLASSES = new byte[256];
+
+    private static final TYPE[] TYPES = TYPE.values();
+    private static final KEYWORD[] KEYWORDS = KEYWORD.values();
+    // The keywords' text, in the order of KEYWORD
+    private static final String[] KEYWORD_NAMES = {
+        "class", "method", "function", "constructor", "int", "boolean", "char", "void",
+        "var", "static", "field", "let", "do", "if", "else", "while", "return", "true", "false", "null", "this"
+    };
+    private static final byte[][] KEYWORD_TEXT = new byte[KEYWORD_NAMES.length][];
+
+    // Tokens the parser can see: the current one and up to LOOKAHEAD after it
+    private static final int LOOKAHEAD = 2;
+    private static final int RING = 4;
+
+    private byte[] source;
+    // Where the lexer goes on from
+    private int position = 0;
+    // A ring buffer of tokens, as parallel arrays indexed by token number % RING: type ordinal,
+    // where the token starts in source, its length, and its value: the keyword's ordinal,
+    // the symbol's character or the integer's value
+    private byte[] types = new byte[RING];
+    private int[] starts = new int[RING];
+    private int[] lengths = new int[RING];
+    private int[] values = new int[RING];
+    // Number of tokens lexed so far
+    private int count = 0;
+
+    // Number of the current token, -1 before the first advance
+    private int current = -1;
+    private int slot = RING - 1;
     private TYPE tokenType;
-    private int pointer;
-    private ArrayList<String> tokens;
-    private static Pattern tokenPatterns;
-    private static String keywordReg;
-    private static String symbolReg;
-    private static String intReg;
-    private static String stringReg;
-    private static String idReg;
-    private static HashMap<String,KEYWORD> keyword = new HashMap<String, KEYWORD>();
-    private static HashSet<Character> op = new HashSet<Character>();
-    
+
     static {
-        // Array of keyword strings and their corresponding KEYWORD enum values
-        String[][] keywordsArray = {
-            {"class", "CLASS"}, {"constructor", "CONSTRUCTOR"}, {"function", "FUNCTION"},
-            {"method", "METHOD"}, {"field", "FIELD"}, {"static", "STATIC"},
-            {"var", "VAR"}, {"int", "INT"}, {"char", "CHAR"}, {"boolean", "BOOLEAN"},
-            {"void", "VOID"}, {"true", "TRUE"}, {"false", "FALSE"}, {"null", "NULL"},
-            {"this", "THIS"}, {"let", "LET"}, {"do", "DO"}, {"if", "IF"},
-            {"else", "ELSE"}, {"while", "WHILE"}, {"return", "RETURN"}
-        };
-    
-        // Populate the keyword map
-        for (String[] pair : keywordsArray) {
-            keyword.put(pair[0], KEYWORD.valueOf(pair[1]));
+        for (int c = 0; c < 256; c++) {
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+                CLASSES[c] = SPACE;
+            }
+            else if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_') {
+                CLASSES[c] = LETTER;
+            }
+            else if (c >= '0' && c <= '9') {
+                CLASSES[c] = DIGIT;
+            }
         }
-    
-        // Array of operator characters
-        char[] opsArray = {'+', '-', '*', '/', '&', '|', '<', '>', '='};
-    
-        // Populate the operator set
-        for (char opChar : opsArray) {
-            op.add(opChar);
+        for (char c : "{}()[].,;+-*&|<>=~".toCharArray()) {
+            CLASSES[c] = SYMBOL;
+        }
+        CLASSES['/'] = SLASH;
+        CLASSES['"'] = QUOTE;
+
+        for (int k = 0; k < KEYWORD_NAMES.length; k++) {
+            KEYWORD_TEXT[k] = KEYWORD_NAMES[k].getBytes(StandardCharsets.ISO_8859_1);
         }
     }
 
@@ -57,91 +80,185 @@ public class JackTokenizer {
      */
     public JackTokenizer(File file) {
         try {
-            Scanner scan = new Scanner(file);
-            String preprocessed = "";
-            String line = "";
-
-            while(scan.hasNext()){
-                line = removeComments(scan.nextLine()).trim();
-                if (line.length() > 0) {
-                    preprocessed += line + "\n";
-                }
-            }
-            preprocessed = removeColorBlocks(preprocessed).trim();
-            initRegs();
-
-            Matcher match = tokenPatterns.matcher(preprocessed);
-            tokens = new ArrayList<String>();
-            pointer = 0;
-            while (match.find()){
-                tokens.add(match.group());
-            }
-        } 
-        catch (FileNotFoundException e) {
-            e.printStackTrace();
+            source = Files.readAllBytes(file.toPath());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        token = "";
         tokenType = TYPE.NONE;
     }
 
-     /**
-     * inti regex we need in tokenizer
+    /**
+     * Lexes the next token into the ring buffer, skipping white space and comments before it.
+     * The state is the class of the character that starts a token, and each state
+     * consumes characters while they belong to its token.
+     * Returns false at the end of the file.
      */
-    private void initRegs(){
-        keywordReg = "";
+    private boolean lex() {
+        int i = position;
+        int length = source.length;
+        int tokens = count;
+        while (i < length && count == tokens) {
+            int start = i;
+            byte c = source[i];
+            switch (CLASSES[c & 0xFF]) {
+                case SPACE:
+                    i++;
+                    break;
+
+                case LETTER:
+                    do {
+                        i++;
+                    } while (i < length && (CLASSES[source[i] & 0xFF] == LETTER || CLASSES[source[i] & 0xFF] == DIGIT));
+                    int keyword = keyword(start, i - start);
+                    if (keyword != -1) {
+                        add(TYPE.KEYWORD, start, i - start, keyword);
+                    }
+                    else {
+                        add(TYPE.IDENTIFIER, start, i - start, 0);
+                    }
+                    break;
+
+                case DIGIT: {
+                    long value = 0;
+                    do {
+                        value = value * 10 + source[i] - '0';
+                        if (value > Integer.MAX_VALUE) {
+                            throw new NumberFormatException("For input string: \"" + text(start, i + 1 - start) + "...\"");
+                        }
+                        i++;
+                    } while (i < length && CLASSES[source[i] & 0xFF] == DIGIT);
+                    add(TYPE.INT_CONST, start, i - start, (int) value);
+                    break;
+                }
 
-        for (String seg: keyword.keySet()) {
-            keywordReg += seg + "|";
+                case QUOTE:
+                    do {
+                        i++;
+                        if (i == length || source[i] == '\n') {
+                            throw new IllegalArgumentException("no such token:" + text(start, i - start));
+                        }
+                    } while (source[i] != '"');
+                    i++;
+                    add(TYPE.STRING_CONST, start, i - start, 0);
+                    break;
+
+                case SLASH:
+                    if (i + 1 < length && source[i + 1] == '/') {
+                        // Line comment, up to the end of the line
+                        while (i < length && source[i] != '\n') {
+                            i++;
+                        }
+                    }
+                    else if (i + 1 < length && source[i + 1] == '*') {
+                        // Block comment, up to the first */ after the /*, or the end of the file
+                        i += 2;
+                        while (i < length && !(source[i] == '*' && i + 1 < length && source[i + 1] == '/')) {
+                            i++;
+                        }
+                        i = Math.min(i + 2, length);
+                    }
+                    else {
+                        i++;
+                        add(TYPE.SYMBOL, start, 1, '/');
+                    }
+                    break;
+
+                case SYMBOL:
+                    i++;
+                    add(TYPE.SYMBOL, start, 1, c);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("no such token:" + (char) (c & 0xFF));
+            }
+        }
+        position = i;
+        return count > tokens;
+    }
+
+    // The ordinal of the keyword spelled by source[start..start + length), or -1
+    private int keyword(int start, int length) {
+        for (int k = 0; k < KEYWORD_TEXT.length; k++) {
+            byte[] text = KEYWORD_TEXT[k];
+            if (text.length == length && text[0] == source[start]) {
+                int j = 1;
+                while (j < length && text[j] == source[start + j]) {
+                    j++;
+                }
+                if (j == length) {
+                    return k;
+                }
+            }
         }
+        return -1;
+    }
 
-        symbolReg = "[\\&\\*\\+\\(\\)\\.\\/\\,\\-\\]\\;\\~\\}\\|\\{\\>\\=\\[\\<]";
-        intReg = "[0-9]+";
-        stringReg = "\"[^\"\n]*\"";
-        idReg = "[a-zA-Z_]\\w*";
-        tokenPatterns = Pattern.compile(idReg + "|" + keywordReg + symbolReg + "|" + intReg + "|" + stringReg);
+    private void add(TYPE type, int start, int length, int value) {
+        int slot = count % RING;
+        types[slot] = (byte) type.ordinal();
+        starts[slot] = start;
+        lengths[slot] = length;
+        values[slot] = value;
+        count++;
+    }
+
+    private String text(int start, int length) {
+        return new String(source, start, length, StandardCharsets.UTF_8);
     }
 
     public boolean hasMoreTokens() {
-        return (pointer < tokens.size());
+        return peek(0) != TYPE.NONE;
     }
 
     /**
      * advances the pointer and sets the current token
      */
     public void advance(){
-        if (hasMoreTokens()) {
-            token = tokens.get(pointer);
-            pointer++;
-        }
-        else {
+        if (!hasMoreTokens()) {
             throw new IllegalStateException("there is no tokens");
         }
+        current++;
+        slot = current % RING;
+        tokenType = TYPES[types[slot]];
+    }
 
-        if (token.matches(keywordReg)) {
-            tokenType = TYPE.KEYWORD;
-        }
-        else if (token.matches(symbolReg)) {
-            tokenType = TYPE.SYMBOL;
-        }
-        else if (token.matches(intReg)) {
-            tokenType = TYPE.INT_CONST;
-        }
-        else if (token.matches(stringReg)) {
-            tokenType = TYPE.STRING_CONST;
-        }
-        else if (token.matches(idReg)) {
-            tokenType = TYPE.IDENTIFIER;
+    /**
+     * Returns the type of the k-th token after the current one, counting from 0,
+     * or NONE if the file ends before it. Lexes up to it if it wasn't yet.
+     */
+    public TYPE peek(int k) {
+        if (k < 0 || k > LOOKAHEAD) {
+            throw new IllegalArgumentException("can only look " + LOOKAHEAD + " tokens ahead, not " + k);
         }
-        else {
-            throw new IllegalArgumentException("no such token:" + token);
+        int token = current + 1 + k;
+        while (count <= token) {
+            if (!lex()) {
+                return TYPE.NONE;
+            }
         }
+        return TYPES[types[token % RING]];
+    }
+
+    /**
+     * Returns the k-th token after the current one if it is a symbol, otherwise 0.
+     */
+    public char peekSymbol(int k) {
+        return peek(k) == TYPE.SYMBOL ? (char) values[(current + 1 + k) % RING] : 0;
+    }
+
+    /**
+     * Returns the k-th token after the current one if it is a keyword, otherwise null.
+     */
+    public KEYWORD peekKeyWord(int k) {
+        return peek(k) == TYPE.KEYWORD ? KEYWORDS[values[(current + 1 + k) % RING]] : null;
     }
 
     /**
      * Get the current token.
      */
     public String getCurrentToken() {
-        return token;
+        return current == -1 ? "" : text(starts[slot], lengths[slot]);
     }
 
     /**
@@ -157,7 +274,7 @@ public class JackTokenizer {
      */
     public KEYWORD keyWord() {
         if (tokenType == TYPE.KEYWORD) {
-            return keyword.get(token);
+            return KEYWORDS[values[slot]];
         }
         else {
             throw new IllegalStateException("the token is not a keyword!, it is a " + tokenType);
@@ -171,7 +288,7 @@ public class JackTokenizer {
     public char symbol(){
         if (tokenType == TYPE.SYMBOL)
         {
-            return token.charAt(0);
+            return (char) values[slot];
         }
         else {
             throw new IllegalStateException("the token is not a symbol! it is a " + tokenType);
@@ -179,12 +296,12 @@ public class JackTokenizer {
     }
 
     /**
-     * Returns the string which is the current token. 
+     * Returns the string which is the current token.
      * Should be called only if tokenType is IDENTIFIER.
      */
     public String identifier() {
         if (tokenType == TYPE.IDENTIFIER) {
-            return token;
+            return new String(source, starts[slot], lengths[slot], StandardCharsets.ISO_8859_1);
         }
         else {
             throw new IllegalStateException("the token is not an identifier! it is a " + tokenType);
@@ -197,7 +314,7 @@ public class JackTokenizer {
      */
     public int intVal(){
         if (tokenType == TYPE.INT_CONST) {
-            return Integer.parseInt(token);
+            return values[slot];
         }
         else {
             throw new IllegalStateException("the token is not an integer constant! it is a " + tokenType);
@@ -210,82 +327,29 @@ public class JackTokenizer {
      */
     public String stringVal() {
         if (tokenType == TYPE.STRING_CONST) {
-            return token.substring(1, token.length() - 1);
+            return text(starts[slot] + 1, lengths[slot] - 2);
         }
         else {
             throw new IllegalStateException("the token is not a string constant! it is a " + tokenType);
         }
     }
 
-    /**
-     * move pointer back
-     */
-    public void movePointerBack() {
-        if (pointer > 0) {
-            pointer--;
-            token = tokens.get(pointer);
-        }
-    }
-
     /**
      * return if current symbol is a op
      */
     public boolean isOp() {
-        return op.contains(symbol());
-    }
-
-    /**
-     * Delete comments(String after "//") from a String
-     * @param str
-     */
-    public static String removeComments(String str) {
-        int position = str.indexOf("//");
-        if (position != -1) {
-            str = str.substring(0, position);
-        }
-
-        return str;
-    }
-    
-    /**
-     * Delete spaces from a String
-     * @param str
-     * @return
-     */
-    public static String removeWhiteSpaces(String str) {
-        String result = "";
-
-        if (str.length() != 0) {
-            String[] segs = str.split(" ");
-            for (String s: segs) {
-                result += s;
-            }
-        }
-        return result;
+        return isOp(symbol());
     }
 
     /**
-     * delete block comment
-     * @param str
+     * return if a symbol is a op
      */
-    public static String removeColorBlocks(String str) {
-        int startIndex = str.indexOf("/*");
-        if (startIndex == -1) {
-            return str;
+    public static boolean isOp(char symbol) {
+        switch (symbol) {
+            case '+': case '-': case '*': case '/': case '&': case '|': case '<': case '>': case '=':
+                return true;
+            default:
+                return false;
         }
-
-        String res = str;
-        int endIndex = str.indexOf("*/");
-        while(startIndex != -1) {
-            if (endIndex == -1) {
-                return str.substring(0,startIndex - 1);
-            }
-
-            res = res.substring(0,startIndex) + res.substring(endIndex + 2);
-            startIndex = res.indexOf("/*");
-            endIndex = res.indexOf("*/");
-        }
-        return res;
     }
 }
-
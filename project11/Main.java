@@ -1,77 +1,75 @@
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Main class for the Jack Compiler.
- * This class processes .jack files and compiles them into XML format.
+ * This class compiles .jack files into VM code.
  * It can handle both single files and directories containing multiple .jack files.
  *
  * The program accepts a command line argument which can be either:
  * 1. A path to a single .jack file
  * 2. A path to a directory containing one or more .jack files
  *
- * For each input file, it creates a corresponding .xml output file with the same base name.
+ * For each input file, it creates a corresponding .vm output file with the same base name.
+ * The classes of a directory are compiled in parallel (see JackCompiler.compileAll).
  *
+ * Options, after the input path:
+ *   --stats   print the time each file took to compile
+ *   --fold    simplify constant expressions and multiplications by powers of two (see ConstantFolder)
+ *   --pool-strings
+ *             build each string constant once per class instead of at every evaluation (see StringPool).
+ *             Every distinct string takes a static variable, and all the classes of a program
+ *             share 240 of them (RAM 16..255): it is an error if the classes compiled together
+ *             need more, but classes compiled separately, like a prebuilt OS, are not counted.
+ *   --arrays  address array entries with constant offsets and reuse THAT (see CodeGenerator)
+ *   --branches
+ *             jump on the conditions of if and while without negating them (see CodeGenerator)
  */
 public class Main {
-    private static int counter = 0;
-    private static String fileName;
 
     public static void main(String[] args) throws IOException {
-        String name;
-        String inputFile = args[0];
-        String[] strArr = inputFile.split("/");
-        int len = strArr.length;
-        fileName = strArr[len-1].split("\\.")[0];
+        // The toolchain server runs main again in the same JVM
+        JackCompiler.folding = false;
+        JackCompiler.poolingStrings = false;
+        JackCompiler.arrayAddressing = false;
+        JackCompiler.branchConditions = false;
+        boolean printStats = false;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--stats":
+                    printStats = true;
+                    break;
 
-        if (!inputFile.endsWith(".jack")) {
+                case "--fold":
+                    JackCompiler.folding = true;
+                    break;
 
-            name = inputFile + "/" + fileName + ".vm";
+                case "--pool-strings":
+                    JackCompiler.poolingStrings = true;
+                    break;
 
-        } else {
-            name = inputFile.replace(".jack", "") + ".vm";
-        }
+                case "--arrays":
+                    JackCompiler.arrayAddressing = true;
+                    break;
 
-        File outFile = new File(name);
-        File input = new File(inputFile);
-        if (input.isDirectory()) {
-            File[] inputListFiles = input.listFiles();
-            for (File file : inputListFiles) {
-                if (file.getPath().endsWith(".jack")) {
-                    counter++;
-                }
-            }
-            
-            for (File file : input.listFiles()) {
-                if (!file.getPath().endsWith(".jack")) {
-                    continue;
-                }
+                case "--branches":
+                    JackCompiler.branchConditions = true;
+                    break;
 
-                if (counter == 1) {
-                    name = file.getPath().replace(".jack", ".vm");
-                    outFile = new File(name);
-                    Translate(file, outFile);
-                    return;
-                } else {
-                    Translate(file, outFile);
-                }
-                
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    break;
             }
+        }
 
+        File input = new File(args[0]);
+        ArrayList<File> jackFiles = new ArrayList<File>();
+        if (input.isDirectory()) {
+            jackFiles = JackCompiler.getJackFiles(input);
         } else {
-            Translate(input, outFile);
+            jackFiles.add(input);
         }
+        JackCompiler.compileAll(jackFiles, printStats);
     }
-
-
-    /**
-     * Translates a single .jack file into a .xml file.
-     * @param file The input .jack file
-     * @param outFile The output .xml file
-     * @throws IOException
-     */
-    public static void Translate(File file, File outFile) throws IOException{
-        CompilationEngine compilationEngine = new CompilationEngine(file, outFile);
-        compilationEngine.compileClass();
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,188 @@
+import java.util.Arrays;
+
+/**
+ * The StringPool class makes a class build each of its distinct string constants once, instead of
+ * every time the constant is evaluated.
+ *
+ * - Gives every distinct string constant of the class a static variable, after the class's own.
+ * - Adds a function `ClassName.$strings` that builds the strings into their variables, in the
+ *   order they first appear. The name can't clash with a subroutine's, as `$` is not a letter.
+ * - Makes each subroutine that uses a string call it first, if the strings aren't built yet,
+ *   and read the strings from their variables.
+ *
+ * All evaluations of a constant then give the same String object, so a program that changes or
+ * disposes of a string it got from a constant changes it for every later use. Strings are built
+ * on the heap once per class, where without pooling every evaluation allocates a new one.
+ *
+ * The Hack platform has STATIC_BUDGET static variables, RAM 16 to 255, for all the classes of a
+ * program, and the VM translator doesn't check that they fit, so pooled strings take static
+ * variables that a program may not have to spare. A class that would need more than all of them
+ * is an error here, and JackCompiler.compileAll checks the classes it compiles together.
+ */
+public class StringPool {
+    private static final String INITIALIZER = "$strings";
+    /** The number of static variables of a whole program, RAM 16 to 255 */
+    public static final int STATIC_BUDGET = 240;
+
+    private Ast ast;
+    private int firstStatic;
+    // The static variable of each text, by its number, -1 for texts that aren't string constants
+    private int[] variables = new int[0];
+    private int count = 0;
+    // The last string to get a variable, see poolExpression
+    private int lastString = -1;
+
+    /**
+     * @param ast         the class's tree
+     * @param firstStatic the first static variable that the class doesn't use
+     */
+    public StringPool(Ast ast, int firstStatic) {
+        this.ast = ast;
+        this.firstStatic = firstStatic;
+    }
+
+    /**
+     * Pools the string constants of a class.
+     */
+    public void pool(int classNode) {
+        String className = ast.textOf(ast.a(classNode));
+        int last = -1;
+        for (int subroutine = ast.b(classNode); subroutine != -1; subroutine = ast.next(subroutine)) {
+            boolean uses = poolStatements(ast.b(subroutine));
+            if (uses) {
+                // if (first string = 0) { do ClassName.$strings(); }, as statics start at 0
+                int built = ast.add(Ast.BINARY, '=', variable(0), ast.add(Ast.CONSTANT, 0, 0, 0));
+                int call = ast.add(Ast.DO, ast.add(Ast.CALL, ast.text(className + "." + INITIALIZER), -1, -1), 0, 0);
+                int guard = ast.add(Ast.IF, built, call, -1);
+                ast.setNext(guard, ast.b(subroutine));
+                ast.replace(subroutine, ast.kind(subroutine), ast.a(subroutine), guard, ast.c(subroutine));
+            }
+            last = subroutine;
+        }
+        if (count == 0) {
+            return;
+        }
+        if (firstStatic + count > STATIC_BUDGET) {
+            throw new IllegalStateException(className + ": pooling its " + count + " strings needs "
+                    + (firstStatic + count) + " static variables, more than the " + STATIC_BUDGET + " of RAM 16..255");
+        }
+
+        // The initializer: let each variable = its string; return;
+        int body = ast.add(Ast.RETURN, -1, 0, 0);
+        int statements = -1;
+        for (int string = lastString; string != -1; ) {
+            int previous = ast.c(string);
+            int let = ast.add(Ast.LET, variable(ast.b(string)), string, 0);
+            ast.replace(string, Ast.STRING, ast.a(string), 0, 0);
+            ast.setNext(let, statements == -1 ? body : statements);
+            statements = let;
+            string = previous;
+        }
+        int initializer = ast.add(Ast.FUNCTION, ast.text(INITIALIZER), statements, 0);
+        if (last == -1) {
+            ast.replace(classNode, Ast.CLASS, ast.a(classNode), initializer, ast.c(classNode));
+        }
+        else {
+            ast.setNext(last, initializer);
+        }
+    }
+
+    /**
+     * Pools the strings of a list of statements, and returns whether it has any.
+     */
+    private boolean poolStatements(int statement) {
+        boolean uses = false;
+        for (; statement != -1; statement = ast.next(statement)) {
+            switch (ast.kind(statement)) {
+                case Ast.LET:
+                    if (ast.kind(ast.a(statement)) == Ast.ARRAY) {
+                        uses |= poolExpression(ast.b(ast.a(statement)));
+                    }
+                    uses |= poolExpression(ast.b(statement));
+                    break;
+                case Ast.IF:
+                    uses |= poolExpression(ast.a(statement));
+                    uses |= poolStatements(ast.b(statement));
+                    uses |= poolStatements(ast.c(statement));
+                    break;
+                case Ast.WHILE:
+                    uses |= poolExpression(ast.a(statement));
+                    uses |= poolStatements(ast.b(statement));
+                    break;
+                case Ast.DO:
+                    uses |= poolExpression(ast.a(statement));
+                    break;
+                case Ast.RETURN:
+                    if (ast.a(statement) != -1) {
+                        uses |= poolExpression(ast.a(statement));
+                    }
+                    break;
+            }
+        }
+        return uses;
+    }
+
+    /**
+     * Returns the number of strings pooled, each of which took a static variable.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Turns the strings of an expression into their variables, and returns whether it has any.
+     */
+    private boolean poolExpression(int expression) {
+        switch (ast.kind(expression)) {
+            case Ast.STRING: {
+                int text = ast.a(expression);
+                if (text >= variables.length) {
+                    int[] grown = new int[Math.max(text + 1, variables.length * 2)];
+                    Arrays.fill(grown, -1);
+                    System.arraycopy(variables, 0, grown, 0, variables.length);
+                    variables = grown;
+                }
+                if (variables[text] == -1) {
+                    // A new string, kept in a STRING node listed through its c field
+                    // until the initializer is made, with b its variable
+                    variables[text] = count++;
+                    int string = ast.add(Ast.STRING, text, variables[text], lastString);
+                    lastString = string;
+                }
+                copyVariable(expression, variables[text]);
+                return true;
+            }
+
+            case Ast.ARRAY:
+            case Ast.UNARY:
+            case Ast.DOUBLE:
+                return poolExpression(ast.b(expression));
+
+            case Ast.BINARY: {
+                boolean left = poolExpression(ast.b(expression));
+                return poolExpression(ast.c(expression)) | left;
+            }
+
+            case Ast.CALL: {
+                boolean uses = ast.b(expression) != -1 && poolExpression(ast.b(expression));
+                for (int argument = ast.c(expression); argument != -1; argument = ast.next(argument)) {
+                    uses |= poolExpression(argument);
+                }
+                return uses;
+            }
+
+            default:
+                return false;
+        }
+    }
+
+    // Makes a node the static variable of the n-th pooled string
+    private void copyVariable(int node, int n) {
+        ast.replace(node, Ast.VARIABLE, VMWriter.SEGMENT.STATIC.ordinal(), firstStatic + n, 0);
+    }
+
+    // A new node of the static variable of the n-th pooled string
+    private int variable(int n) {
+        return ast.add(Ast.VARIABLE, VMWriter.SEGMENT.STATIC.ordinal(), firstStatic + n, 0);
+    }
+}
@@ -1,21 +1,111 @@
-import java.util.HashMap;
+import java.util.Arrays;
 
+/**
+ * The symbols of a class and of the subroutine being compiled.
+ *
+ * Each scope keeps its symbols in flat arrays, in the order they are defined, with an open
+ * addressing table from names to their place in the arrays. The subroutine scope is reused for
+ * every subroutine: startSubroutine empties it without freeing its arrays.
+ *
+ * Every symbol gets its binding when it is defined: its VM segment and index packed in an int,
+ * so a variable is resolved with one lookup (see lookup, bindingSegment and bindingIndex).
+ * Class-level names are looked up before the subroutine's, as they always have been.
+ */
 public class SymbolTable {
-    private HashMap<String,Symbol> classtable;
-    private HashMap<String,Symbol> subroutineTable;
-    private HashMap<Symbol.KIND,Integer> variables;
+    /** The binding of a name that isn't defined */
+    public static final int NO_BINDING = -1;
+
+    private static final Symbol.KIND[] KINDS = Symbol.KIND.values();
+    private static final VMWriter.SEGMENT[] SEGMENTS = VMWriter.SEGMENT.values();
+
+    private Scope classScope = new Scope();
+    private Scope subroutineScope = new Scope();
+    // The number of variables of each kind, by its ordinal
+    private int[] variables = new int[KINDS.length];
 
     /**
-     * Creates a new symbol table.
+     * The symbols of one scope.
      */
-    public SymbolTable() {
-        classtable = new HashMap<String, Symbol>();
-        subroutineTable = new HashMap<String, Symbol>();
-        variables = new HashMap<Symbol.KIND,Integer>();
-        variables.put(Symbol.KIND.ARG, 0);
-        variables.put(Symbol.KIND.FIELD, 0);
-        variables.put(Symbol.KIND.STATIC, 0);
-        variables.put(Symbol.KIND.VAR, 0);
+    private static class Scope {
+        private String[] names = new String[16];
+        private String[] types = new String[16];
+        private Symbol.KIND[] kinds = new Symbol.KIND[16];
+        private int[] bindings = new int[16];
+        // Where in the table each symbol is, so that clear can empty just those places
+        private int[] places = new int[16];
+        private int count = 0;
+        // The symbol of each place plus 1, 0 for an empty place, at most half full
+        private int[] table = new int[32];
+
+        /**
+         * Returns the place of a symbol, -1 if it isn't in the scope.
+         */
+        private int find(String name) {
+            int mask = table.length - 1;
+            for (int place = hash(name) & mask; table[place] != 0; place = (place + 1) & mask) {
+                int symbol = table[place] - 1;
+                if (names[symbol].equals(name)) {
+                    return symbol;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Adds a symbol, which hides the symbol of the same name, if any.
+         */
+        private void define(String name, String type, Symbol.KIND kind, int binding) {
+            if (count == names.length) {
+                names = Arrays.copyOf(names, count * 2);
+                types = Arrays.copyOf(types, count * 2);
+                kinds = Arrays.copyOf(kinds, count * 2);
+                bindings = Arrays.copyOf(bindings, count * 2);
+                places = Arrays.copyOf(places, count * 2);
+            }
+            if ((count + 1) * 2 > table.length) {
+                rehash(table.length * 2);
+            }
+            names[count] = name;
+            types[count] = type;
+            kinds[count] = kind;
+            bindings[count] = binding;
+            place(count);
+            count++;
+        }
+
+        /**
+         * Points the place of a symbol's name at it.
+         */
+        private void place(int symbol) {
+            int mask = table.length - 1;
+            int place = hash(names[symbol]) & mask;
+            while (table[place] != 0 && !names[table[place] - 1].equals(names[symbol])) {
+                place = (place + 1) & mask;
+            }
+            table[place] = symbol + 1;
+            places[symbol] = place;
+        }
+
+        private void rehash(int size) {
+            table = new int[size];
+            for (int symbol = 0; symbol < count; symbol++) {
+                place(symbol);
+            }
+        }
+
+        private void clear() {
+            for (int symbol = 0; symbol < count; symbol++) {
+                table[places[symbol]] = 0;
+                names[symbol] = null;
+                types[symbol] = null;
+            }
+            count = 0;
+        }
+
+        private static int hash(String name) {
+            int hash = name.hashCode();
+            return hash ^ (hash >>> 16);
+        }
     }
 
     /**
@@ -23,10 +113,10 @@ public class SymbolTable {
      * Resets the subroutine's symbol table.
      */
     public void startSubroutine() {
-        subroutineTable.clear();
+        subroutineScope.clear();
 
-        variables.put(Symbol.KIND.VAR, 0);
-        variables.put(Symbol.KIND.ARG, 0);
+        variables[Symbol.KIND.VAR.ordinal()] = 0;
+        variables[Symbol.KIND.ARG.ordinal()] = 0;
     }
 
     /*
@@ -34,17 +124,16 @@ public class SymbolTable {
      * Assigns to it the index value of that kind and adds 1 to the index.
      */
     public void define (String name, String type, Symbol.KIND kind) {
+        if (kind == Symbol.KIND.NONE) {
+            return;
+        }
+        int index = variables[kind.ordinal()]++;
+        int binding = (segmentOf(kind).ordinal() << 16) | index;
         if (kind == Symbol.KIND.ARG || kind == Symbol.KIND.VAR) {
-            int index = variables.get(kind);
-            Symbol symbol = new Symbol(type, kind, index);
-            variables.put(kind, index + 1);
-            subroutineTable.put(name, symbol);
+            subroutineScope.define(name, type, kind, binding);
         }
-        else if (kind.equals(Symbol.KIND.STATIC) || kind.equals(Symbol.KIND.FIELD)) {
-            int index = variables.get(kind);
-            Symbol symbol = new Symbol(type, kind, index);
-            variables.put(kind, index + 1);
-            classtable.put(name, symbol);
+        else {
+            classScope.define(name, type, kind, binding);
         }
     }
 
@@ -52,7 +141,41 @@ public class SymbolTable {
      * Returns the number of variables of the given kind already defined in the table.
      */
     public int varCount(Symbol.KIND kind) {
-        return variables.get(kind);
+        return variables[kind.ordinal()];
+    }
+
+    /**
+     * Returns the binding of the named identifier: its segment and index, packed in an int.
+     * If the identifier is not found, returns NO_BINDING.
+     *
+     * Example:
+     * Input: `x`, a local variable declared second
+     * Output: the binding of `local 1`
+     */
+    public int lookup(String name) {
+        int symbol = classScope.find(name);
+        if (symbol != -1) {
+            return classScope.bindings[symbol];
+        }
+        symbol = subroutineScope.find(name);
+        if (symbol != -1) {
+            return subroutineScope.bindings[symbol];
+        }
+        return NO_BINDING;
+    }
+
+    /**
+     * Returns the segment of a binding, NONE for NO_BINDING.
+     */
+    public static VMWriter.SEGMENT bindingSegment(int binding) {
+        return binding == NO_BINDING ? VMWriter.SEGMENT.NONE : SEGMENTS[binding >>> 16];
+    }
+
+    /**
+     * Returns the index of a binding, -1 for NO_BINDING.
+     */
+    public static int bindingIndex(int binding) {
+        return binding == NO_BINDING ? -1 : binding & 0xFFFF;
     }
 
     /*
@@ -60,45 +183,55 @@ public class SymbolTable {
      * if the identifier is not found, returns NONE.
      */
     public Symbol.KIND kindOf (String name) {
-        Symbol symbol = checkSymbolExists(name);
-
-        if (symbol != null) {
-            return symbol.getKind();
+        int symbol = classScope.find(name);
+        if (symbol != -1) {
+            return classScope.kinds[symbol];
+        }
+        symbol = subroutineScope.find(name);
+        if (symbol != -1) {
+            return subroutineScope.kinds[symbol];
         }
-
         return Symbol.KIND.NONE;
     }
 
     /*
      * Returns the type of the named variable.
      */
-     public String typeOf (String name) {
-        Symbol symbol = checkSymbolExists(name);
-        if (symbol != null) {
-            return symbol.getType();
+    public String typeOf (String name) {
+        int symbol = classScope.find(name);
+        if (symbol != -1) {
+            return classScope.types[symbol];
+        }
+        symbol = subroutineScope.find(name);
+        if (symbol != -1) {
+            return subroutineScope.types[symbol];
         }
-
         return "";
     }
 
     public int indexOf (String name) {
-        Symbol symbol = checkSymbolExists(name);
-        if (symbol != null) {
-            return symbol.getIndex();
-        }
-
-        return -1;
+        return bindingIndex(lookup(name));
     }
 
-    private Symbol checkSymbolExists(String name){
-        if (classtable.get(name) != null) {
-            return classtable.get(name);
-        }
-        else if (subroutineTable.get(name) != null) {
-            return subroutineTable.get(name);
-        }
-        else {
-            return null;
-        }
+    /**
+     * Maps a symbol kind to its corresponding VM segment.
+     *
+     * - Converts `FIELD`, `STATIC`, `VAR`, and `ARG` to `this`, `static`, `local`, and `argument`.
+     *
+     * Example:
+     * Input: `Symbol.KIND.FIELD`
+     * Output: `VMWriter.SEGMENT.THIS`
+     *
+     * Returns:
+     * - `VMWriter.SEGMENT.NONE` for unrecognized kinds.
+     */
+    public static VMWriter.SEGMENT segmentOf(Symbol.KIND kind){
+        return switch (kind) {
+            case FIELD -> VMWriter.SEGMENT.THIS;
+            case STATIC -> VMWriter.SEGMENT.STATIC;
+            case VAR -> VMWriter.SEGMENT.LOCAL;
+            case ARG -> VMWriter.SEGMENT.ARG;
+            default -> VMWriter.SEGMENT.NONE;
+        };
     }
 }
@@ -7,24 +7,35 @@ public class Main {
 
 
     public static void main(String[] args) throws IOException {
-        
+        // The toolchain server runs main again in the same JVM
+        currentFreeAddress = 16;
+
         // Initialize - open file and construct symbol table (with predefined)
         File input = new File(args[0]);
         Parser parser = new Parser(input);
 
         StringBuilder outputFile = new StringBuilder();
-        outputFile.append(args[0].split("\\.")[0]);
+        // Only the extension goes, the directories may have dots too
+        outputFile.append(args[0].endsWith(".asm") ? args[0].substring(0, args[0].length() - 4) : args[0]);
         outputFile.append(".hack");
 
         FileWriter fileWriter = new FileWriter(outputFile.toString());
 
         SymbolTable symbolTable = InitSymbolTable();
 
-        FirstPass(symbolTable, parser);
+        try {
+            FirstPass(symbolTable, parser);
+        } finally {
+            parser.close();
+        }
         
         // Begin reading again from start
         parser = new Parser(input);
-        SecondPass(symbolTable, parser, fileWriter);
+        try {
+            SecondPass(symbolTable, parser, fileWriter);
+        } finally {
+            parser.close();
+        }
 
         fileWriter.close();
         
@@ -127,6 +138,8 @@ public class Main {
 
 
     public static String AInstructionToBinary(int symbol) {
-        return String.format("%16s", Integer.toBinaryString(symbol)).replace(' ', '0');
+        // Padded by hand, String.format sets up a regex and the locale on its first call
+        String binary = Integer.toBinaryString(symbol);
+        return "0000000000000000".substring(binary.length()) + binary;
     }
 }
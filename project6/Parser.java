@@ -1,11 +1,17 @@
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
-import java.util.Scanner;
+import java.io.UncheckedIOException;
 
 
 public class Parser {
-    private static Scanner scanner;
-    private static String currentInstruction;
+    // BufferedReader rather than Scanner, whose regex and locale setup cost more than
+    // assembling a small program when the JVM has just started
+    // Closed, and null, once the last line is read
+    private BufferedReader reader;
+    private String nextLine;
+    private String currentInstruction;
 
     // Define InstructionTypes
     public enum InstructionTypes {
@@ -14,25 +20,51 @@ public class Parser {
 
     // Opens the file/stream and gets ready to parse it
     public Parser(File inFile) throws IOException{
-        scanner = new Scanner(inFile);
+        reader = new BufferedReader(new FileReader(inFile));
+        nextLine = reader.readLine();
+        if (nextLine == null) {
+            close();
+        }
+    }
+
+    // Closes the file, if it is still open. The toolchain server keeps running after each
+    // assembly, so a parser that stops before the end of its file must be closed.
+    public final void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
     }
 
     // Return True if thare are more lines in the file
     public boolean hasMoreLines() {
-        if (scanner.hasNextLine())
+        if (nextLine != null)
             return true;
         return false;
     }
+
+    private String nextLine() {
+        String line = nextLine;
+        try {
+            nextLine = reader.readLine();
+            if (nextLine == null) {
+                close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return line;
+    }
     
     // Skips over whitespace and comments, if necessary.
     // Reads the next instruction from the input, and makes it the current instruction.
     // This method should be called only if hasMoreLines is true.
     // Initially there is no current instruction.
     public void advance() {
-        currentInstruction = scanner.nextLine();
+        currentInstruction = nextLine();
         while((currentInstruction.contains("//") || currentInstruction.isBlank()) && hasMoreLines())
         {
-            currentInstruction = scanner.nextLine();
+            currentInstruction = nextLine();
         }
         currentInstruction = currentInstruction.trim();
     }
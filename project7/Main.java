@@ -41,13 +41,14 @@ public class Main {
         while (parser.hasMoreLines()) {
 
             parser.advance();
+            Parser.commandType commandType = parser.getCommandType();
             
-            if (parser.getCommandType() == Parser.commandType.C_ARITHMETIC) {
+            if (commandType == Parser.commandType.C_ARITHMETIC) {
                 String command = parser.arg1();
                 codeWriter.writeArithmetic(command);
                 
             } else {
-                codeWriter.WritePushPop(parser.getCommandType(), parser.arg1(), parser.arg2());
+                codeWriter.WritePushPop(commandType, parser.arg1(), parser.arg2());
             }
         }
         codeWriter.close(lastFile);
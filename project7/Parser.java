@@ -1,64 +1,238 @@
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 public class Parser {
-    private Scanner scanner;
-    private String currentInstruction;
+    // Files up to this size are read instead of mapped. The first map() of a run
+    // bootstraps the JDK's method handle machinery, which costs more than reading them.
+    private static final long MAP_THRESHOLD = 1 << 20;
+
+    private ByteBuffer buffer;
+    private int position = 0;
+    private int lineNumber = 1;
+
+    // The current command, parsed once by advance()
+    private opcode currentOpcode;
+    private segmentType currentSegment;
+    private int currentNumber;
 
     // Define InstructionTypes
     public enum commandType {
             C_ARITHMETIC, C_PUSH, C_POP
     }
 
+    public enum opcode {
+        ADD("add", commandType.C_ARITHMETIC),
+        SUB("sub", commandType.C_ARITHMETIC),
+        NEG("neg", commandType.C_ARITHMETIC),
+        EQ("eq", commandType.C_ARITHMETIC),
+        GT("gt", commandType.C_ARITHMETIC),
+        LT("lt", commandType.C_ARITHMETIC),
+        AND("and", commandType.C_ARITHMETIC),
+        OR("or", commandType.C_ARITHMETIC),
+        NOT("not", commandType.C_ARITHMETIC),
+        PUSH("push", commandType.C_PUSH),
+        POP("pop", commandType.C_POP);
+
+        public final String text;
+        public final commandType type;
+
+        opcode(String text, commandType type) {
+            this.text = text;
+            this.type = type;
+        }
+    }
+
+    public enum segmentType {
+        LOCAL("local"), ARGUMENT("argument"), THIS("this"), THAT("that"),
+        CONSTANT("constant"), STATIC("static"), POINTER("pointer"), TEMP("temp");
+
+        public final String text;
+
+        segmentType(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final opcode[] OPCODES = opcode.values();
+    private static final segmentType[] SEGMENTS = segmentType.values();
+
     // Opens the file/stream and gets ready to parse it
     public Parser(File inFile) throws IOException{
-        scanner = new Scanner(inFile);
+        if (inFile.length() <= MAP_THRESHOLD) {
+            try (FileInputStream in = new FileInputStream(inFile)) {
+                buffer = ByteBuffer.wrap(in.readAllBytes());
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(inFile.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
     }
 
-    // Return True if thare are more lines in the file
+    // Return True if thare are more commands in the file
     public boolean hasMoreLines() {
-        if (scanner.hasNextLine())
-            return true;
-        return false;
+        skipBlankLines();
+        return position < buffer.limit();
     }
 
     // Skips over whitespace and comments, if necessary.
-    // Reads the next instruction from the input, and makes it the current instruction.
+    // Reads the next command from the input in a single scan, and makes it the current command.
     // This method should be called only if hasMoreLines is true.
     // Initially there is no current instruction.
     public void advance() {
-        currentInstruction = scanner.nextLine();
-        while((currentInstruction.contains("//") || currentInstruction.isBlank()) && hasMoreLines())
-        {
-            currentInstruction = scanner.nextLine();
+        skipBlankLines();
+
+        int start = position;
+        currentOpcode = null;
+        for (opcode candidate : OPCODES) {
+            if (matchWord(start, candidate.text)) {
+                currentOpcode = candidate;
+                break;
+            }
         }
-        currentInstruction = currentInstruction.trim();
-    }
+        if (currentOpcode == null) {
+            throw error("Unknown command");
+        }
+        position += currentOpcode.text.length();
+
+        switch (currentOpcode.type) {
+            case C_PUSH:
+            case C_POP:
+                skipSpaces();
+                currentSegment = null;
+                for (segmentType candidate : SEGMENTS) {
+                    if (matchWord(position, candidate.text)) {
+                        currentSegment = candidate;
+                        break;
+                    }
+                }
+                if (currentSegment == null) {
+                    throw error("Unknown segment");
+                }
+                position += currentSegment.text.length();
+                currentNumber = readNumber();
+                break;
 
-    public commandType getCommandType() {
-        switch (currentInstruction.split(" ")[0]) {
-            case "push":
-                return commandType.C_PUSH;
-            case "pop":
-                return commandType.C_POP;
-        
             default:
-                return commandType.C_ARITHMETIC;
+                break;
         }
+
+        skipToNextLine();
+    }
+
+    public commandType getCommandType() {
+        return currentOpcode.type;
+    }
+
+    public opcode getOpcode() {
+        return currentOpcode;
+    }
+
+    // Should be called only if the current command is C_PUSH or C_POP.
+    public segmentType getSegment() {
+        return currentSegment;
     }
 
     public String arg1() {
-        if (this.getCommandType() == commandType.C_ARITHMETIC) {
-            return currentInstruction;
+        if (currentOpcode.type == commandType.C_ARITHMETIC) {
+            return currentOpcode.text;
         } else {
-            return currentInstruction.split(" ")[1];
+            return currentSegment.text;
         }
     }
 
     public int arg2() {
-        String[] instruction = currentInstruction.split(" ");
-        return Integer.parseInt(instruction[instruction.length - 1]);
+        return currentNumber;
+    }
+
+    // Moves past empty lines and lines that hold only a comment
+    private void skipBlankLines() {
+        int limit = buffer.limit();
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b == ' ' || b == '\t' || b == '\r') {
+                position++;
+            } else if (b == '\n') {
+                position++;
+                lineNumber++;
+            } else if (b == '/') {
+                skipToEndOfLine();
+            } else {
+                return;
+            }
+        }
+    }
+
+    // Consumes the rest of the current line, which may only hold spaces and a comment
+    private void skipToNextLine() {
+        skipSpaces();
+        int limit = buffer.limit();
+        if (position < limit && buffer.get(position) != '/' && buffer.get(position) != '\n') {
+            throw error("Unexpected text after command");
+        }
+        skipToEndOfLine();
+    }
+
+    private void skipToEndOfLine() {
+        int limit = buffer.limit();
+        while (position < limit && buffer.get(position) != '\n') {
+            position++;
+        }
+    }
+
+    private void skipSpaces() {
+        int limit = buffer.limit();
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    // True if the bytes at start spell word, followed by a separator
+    private boolean matchWord(int start, String word) {
+        int end = start + word.length();
+        if (end > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (buffer.get(start + i) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return end == buffer.limit() || isSeparator(buffer.get(end));
+    }
+
+    private boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '/';
     }
-}
 
+    private int readNumber() {
+        skipSpaces();
+        int start = position;
+        int value = 0;
+        int limit = buffer.limit();
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            value = value * 10 + (b - '0');
+            position++;
+        }
+        if (position == start) {
+            throw error("Missing number");
+        }
+        return value;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at line " + lineNumber);
+    }
+}
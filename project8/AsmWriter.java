@@ -0,0 +1,219 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/*
+ * Buffered sink for the .asm text produced by the CodeWriter.
+ * Output goes to the file in fixed-size chunks as it is produced, so memory does not grow
+ * with the program. Numbers and strings are copied into the buffer char by char and fixed
+ * instruction sequences are kept as pre-encoded Templates, so emitting code builds no Strings.
+ */
+public class AsmWriter implements HackSink {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private OutputStream out;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private byte[] digits = new byte[11];
+    private int position = 0;
+    // Every template made so far, by id, so recorded output can refer to them
+    private static final ArrayList<Template> templates = new ArrayList<>();
+
+    // A fixed sequence of instructions, encoded once as text and as machine words
+    public static class Template {
+        private final byte[] bytes;
+        private final int[] words;
+        private final int id;
+
+        private Template(byte[] bytes, int[] words, int id) {
+            this.bytes = bytes;
+            this.words = words;
+            this.id = id;
+        }
+
+        // Number of instructions (ROM words) in the template
+        public int size() {
+            return words.length;
+        }
+
+        public int[] words() {
+            return words;
+        }
+
+        public int id() {
+            return id;
+        }
+    }
+
+    public static Template template(int id) {
+        return templates.get(id);
+    }
+
+    // Encodes the given instructions, one per line.
+    // Templates may only use numbers and predefined symbols, so they assemble on their own.
+    public static Template template(String... instructions) {
+        StringBuilder text = new StringBuilder();
+        int[] words = new int[instructions.length];
+        for (int i = 0; i < instructions.length; i++) {
+            text.append(instructions[i]).append('\n');
+            words[i] = HackAssembler.encode(instructions[i]);
+        }
+
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        Template template = new Template(bytes, words, templates.size());
+        templates.add(template);
+        return template;
+    }
+
+    public AsmWriter(String fileName) throws IOException {
+        this(new FileOutputStream(fileName));
+    }
+
+    public AsmWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    // Text that is already in .asm form, e.g. from the cache
+    public void writeRaw(byte[] bytes, int offset, int length) throws IOException {
+        if (position + length > BUFFER_SIZE) {
+            flush();
+            if (length > BUFFER_SIZE) {
+                out.write(bytes, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    @Override
+    public void write(Template template) throws IOException {
+        byte[] bytes = template.bytes;
+        if (position + bytes.length > BUFFER_SIZE) {
+            flush();
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    @Override
+    public void writeAddress(int value) throws IOException {
+        write('@');
+        write(value);
+        write('\n');
+    }
+
+    @Override
+    public void writeAddress(String symbol) throws IOException {
+        write('@');
+        write(symbol);
+        write('\n');
+    }
+
+    @Override
+    public void writeAddress(String prefix, String name) throws IOException {
+        write('@');
+        write(prefix);
+        write(name);
+        write('\n');
+    }
+
+    @Override
+    public void writeAddress(String prefix, int number) throws IOException {
+        write('@');
+        write(prefix);
+        write(number);
+        write('\n');
+    }
+
+    @Override
+    public void writeLabel(String symbol) throws IOException {
+        write('(');
+        write(symbol);
+        write(")\n");
+    }
+
+    @Override
+    public void writeLabel(String prefix, String name) throws IOException {
+        write('(');
+        write(prefix);
+        write(name);
+        write(")\n");
+    }
+
+    @Override
+    public void writeLabel(String prefix, int number) throws IOException {
+        write('(');
+        write(prefix);
+        write(number);
+        write(")\n");
+    }
+
+    @Override
+    public void writeComment(String text) throws IOException {
+        write("// ");
+        write(text);
+        write('\n');
+    }
+
+    @Override
+    public void writeComment(String command, String arg) throws IOException {
+        write("// ");
+        write(command);
+        write(' ');
+        write(arg);
+        write('\n');
+    }
+
+    @Override
+    public void writeComment(String command, String arg, int number) throws IOException {
+        write("// ");
+        write(command);
+        write(' ');
+        write(arg);
+        write(' ');
+        write(number);
+        write('\n');
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    // Writes an ASCII string
+    private void write(String str) throws IOException {
+        for (int i = 0; i < str.length(); i++) {
+            write(str.charAt(i));
+        }
+    }
+
+    private void write(char c) throws IOException {
+        if (position == BUFFER_SIZE) {
+            flush();
+        }
+        buffer[position++] = (byte) c;
+    }
+
+    // Writes a non-negative decimal number
+    private void write(int value) throws IOException {
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        while (count > 0) {
+            write((char) digits[--count]);
+        }
+    }
+
+    public void flush() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/*
+ * Whole-program pass over the .vm files that finds which functions can run.
+ * Each function's calls are collected, then the graph is walked from the entry
+ * function (Sys.init). Calls made outside any function also count as entries.
+ * It also keeps the fewest and most arguments each function is called with.
+ */
+public class CallGraph {
+    private static final String TOP_LEVEL = "";
+
+    private HashMap<String, ArrayList<String>> calls = new HashMap<>();
+    private LinkedHashSet<String> reachable = new LinkedHashSet<>();
+    private boolean resolved = false;
+    // {min, max} argument counts over all call sites
+    private HashMap<String, int[]> argCounts = new HashMap<>();
+    // Functions defined in each file
+    private HashMap<String, ArrayList<String>> functionsByFile = new HashMap<>();
+
+    // The function and call commands of one file, in order, which is all the graph needs from it.
+    // Kept apart so the cache can store it.
+    public static class FileSummary {
+        private ArrayList<String> names = new ArrayList<>();
+        // Arguments of a call, FUNCTION for a function definition
+        private ArrayList<Integer> numbers = new ArrayList<>();
+        private static final int FUNCTION = -1;
+
+        public static FileSummary scan(File file) throws IOException {
+            FileSummary summary = new FileSummary();
+            Parser parser = new Parser(file);
+            while (parser.hasMoreLines()) {
+                parser.advance();
+                switch (parser.getCommandType()) {
+                    case C_FUNCTION:
+                        summary.names.add(parser.arg1());
+                        summary.numbers.add(FUNCTION);
+                        break;
+
+                    case C_CALL:
+                        summary.names.add(parser.arg1());
+                        summary.numbers.add(parser.arg2());
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+            return summary;
+        }
+
+        public static FileSummary read(DataInputStream in) throws IOException {
+            FileSummary summary = new FileSummary();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                summary.names.add(in.readUTF());
+                summary.numbers.add(in.readInt());
+            }
+            return summary;
+        }
+
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                out.writeUTF(names.get(i));
+                out.writeInt(numbers.get(i));
+            }
+        }
+    }
+
+    public void addFile(File file, Inliner inliner) throws IOException {
+        addFile(file, FileSummary.scan(file), inliner);
+    }
+
+    // Calls the inliner replaces with the callee's body are not edges
+    public void addFile(File file, FileSummary summary, Inliner inliner) {
+        ArrayList<String> callees = callees(TOP_LEVEL);
+        ArrayList<String> functions = new ArrayList<>();
+        functionsByFile.put(file.getPath(), functions);
+
+        for (int i = 0; i < summary.names.size(); i++) {
+            String name = summary.names.get(i);
+            int nArgs = summary.numbers.get(i);
+            if (nArgs == FileSummary.FUNCTION) {
+                callees = callees(name);
+                functions.add(name);
+                continue;
+            }
+
+            addCall(name, nArgs);
+            if (inliner == null || !inliner.canInline(name, nArgs)) {
+                callees.add(name);
+            }
+        }
+    }
+
+    // A call site of function with nArgs arguments, e.g. the bootstrap call to Sys.init
+    public void addCall(String function, int nArgs) {
+        int[] counts = argCounts.get(function);
+        if (counts == null) {
+            argCounts.put(function, new int[] {nArgs, nArgs});
+        } else {
+            counts[0] = Math.min(counts[0], nArgs);
+            counts[1] = Math.max(counts[1], nArgs);
+        }
+    }
+
+    // Fewest arguments the function is called with, -1 if it is never called
+    public int minArgs(String function) {
+        int[] counts = argCounts.get(function);
+        return counts == null ? -1 : counts[0];
+    }
+
+    // True if every call site passes exactly nArgs arguments
+    public boolean alwaysCalledWith(String function, int nArgs) {
+        int[] counts = argCounts.get(function);
+        return counts != null && counts[0] == nArgs && counts[1] == nArgs;
+    }
+
+    // What the translation of file takes from the rest of the program, for the cache:
+    // whether its functions are kept and how many arguments they are called with
+    public String facts(File file) {
+        StringBuilder facts = new StringBuilder();
+        for (String function : functionsByFile.getOrDefault(file.getPath(), new ArrayList<>())) {
+            int[] counts = argCounts.getOrDefault(function, new int[] {-1, -1});
+            facts.append(function).append(' ').append(isReachable(function)).append(' ')
+                    .append(counts[0]).append(' ').append(counts[1]).append('\n');
+        }
+        return facts.toString();
+    }
+
+    // Marks everything reachable from the entry function
+    public void resolve(String entry) {
+        resolved = true;
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        queue.add(TOP_LEVEL);
+        queue.add(entry);
+
+        while (!queue.isEmpty()) {
+            String function = queue.poll();
+            if (!calls.containsKey(function) || !reachable.add(function)) {
+                continue;
+            }
+            queue.addAll(calls.get(function));
+        }
+        reachable.remove(TOP_LEVEL);
+    }
+
+    public boolean isDefined(String function) {
+        return calls.containsKey(function);
+    }
+
+    // Every function counts as reachable until resolve is called
+    public boolean isReachable(String function) {
+        return !resolved || reachable.contains(function);
+    }
+
+    public boolean isResolved() {
+        return resolved;
+    }
+
+    // Number of functions defined in the program
+    public int size() {
+        return calls.size() - (calls.containsKey(TOP_LEVEL) ? 1 : 0);
+    }
+
+    // Reachable functions, in the order they were found
+    public Iterable<String> reachable() {
+        return reachable;
+    }
+
+    public int reachableCount() {
+        return reachable.size();
+    }
+
+    private ArrayList<String> callees(String function) {
+        ArrayList<String> callees = calls.get(function);
+        if (callees == null) {
+            callees = new ArrayList<>();
+            calls.put(function, callees);
+        }
+        return callees;
+    }
+}
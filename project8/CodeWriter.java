@@ -1,17 +1,126 @@
-import java.io.FileWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 public class CodeWriter {
-    private FileWriter fileWriter;
+    private HackSink sink;
     private String fileName;
     private String currentFuncName;
+    // fileName.function$ and fileName., prefixes of the current label and static symbols
+    private String labelScope;
+    private String staticScope;
     private int lineCounter = 0;
-    private StringBuilder stringToWrite = new StringBuilder();
     private Boolean bootStrapped = false;
     private HashMap<String, Integer> labelMap = new HashMap<>();
+    private boolean sharedComparisons = false;
+    private HashMap<String, Integer> comparisonSites = new HashMap<>();
+    // While discarding, code goes to a NullSink and only its size is kept
+    private HackSink keptSink;
+    private int keptLineCounter;
+    private int discardedWords = 0;
+
+    // Largest offsets reached with an A=A+1 chain, beyond that @offset is as short
+    private static final int PUSH_CHAIN_LIMIT = 2;
+    private static final int POP_CHAIN_LIMIT = 6;
+    // Words of the old generic local/argument push and pop (this/that took one less), used by pushPopStats
+    private static final int GENERIC_PUSH_WORDS = 6;
+    private static final int GENERIC_POP_WORDS = 13;
+    // {sites, words saved} for each push/pop form
+    private LinkedHashMap<String, int[]> pushPopSites = new LinkedHashMap<>();
+    // Largest distance below SP reached with an A=A-1 chain in inlined code
+    private static final int SLOT_CHAIN_LIMIT = 3;
+    private static final int POP_SLOT_CHAIN_LIMIT = 8;
+    // Call sites replaced by the callee's body, per callee
+    private LinkedHashMap<String, Integer> inlinedSites = new LinkedHashMap<>();
+
+    // Fixed instruction sequences
+    private static final AsmWriter.Template BOOTSTRAP = AsmWriter.template("@256", "D=A", "@SP", "M=D");
+    private static final AsmWriter.Template PUSH_D = AsmWriter.template("@SP", "A=M", "M=D", "@SP", "M=M+1");
+    private static final AsmWriter.Template POP_D = AsmWriter.template("@SP", "M=M-1", "A=M", "D=M");
+    private static final AsmWriter.Template POP_TO_R13_AM = AsmWriter.template(
+            "@R13", "M=D", "@SP", "AM=M-1", "D=M", "@R13", "A=M", "M=D");
+    private static final AsmWriter.Template D_EQ_M = AsmWriter.template("D=M");
+    private static final AsmWriter.Template D_EQ_A = AsmWriter.template("D=A");
+    private static final AsmWriter.Template M_EQ_D = AsmWriter.template("M=D");
+    private static final AsmWriter.Template D_EQ_D_PLUS_A = AsmWriter.template("D=D+A");
+    private static final AsmWriter.Template A_EQ_D_PLUS_A = AsmWriter.template("A=D+A");
+    private static final AsmWriter.Template A_EQ_M = AsmWriter.template("A=M");
+    private static final AsmWriter.Template A_EQ_M_PLUS_1 = AsmWriter.template("A=M+1");
+    private static final AsmWriter.Template A_EQ_A_PLUS_1 = AsmWriter.template("A=A+1");
+    private static final AsmWriter.Template POP_D_AM = AsmWriter.template("@SP", "AM=M-1", "D=M");
+    private static final AsmWriter.Template PUSH_ZERO = AsmWriter.template("@SP", "A=M", "M=0", "@SP", "M=M+1");
+    private static final AsmWriter.Template STACK_TOP = AsmWriter.template("@SP", "A=M-1");
+    private static final AsmWriter.Template A_EQ_A_MINUS_1 = AsmWriter.template("A=A-1");
+    private static final AsmWriter.Template A_EQ_M_MINUS_D = AsmWriter.template("@SP", "A=M-D");
+    private static final AsmWriter.Template D_EQ_M_MINUS_D = AsmWriter.template("@SP", "D=M-D");
+    private static final AsmWriter.Template SET_R13 = AsmWriter.template("@R13", "M=D");
+    private static final AsmWriter.Template AT_R13 = AsmWriter.template("@R13", "A=M");
+    private static final AsmWriter.Template SP_EQ_A_PLUS_1 = AsmWriter.template("D=A+1", "@SP", "M=D");
+    private static final AsmWriter.Template TAIL_FRAME_TARGET = AsmWriter.template("@ARG", "D=M");
+    private static final AsmWriter.Template TAIL_FRAME_SOURCE = AsmWriter.template("@LCL", "D=M");
+    private static final AsmWriter.Template TAIL_FRAME_WORD = AsmWriter.template(
+            "A=D-A", "D=M", "@R14", "A=M", "M=D", "@R14", "M=M+1");
+    private static final AsmWriter.Template TAIL_SET_LCL = AsmWriter.template("@LCL", "M=D", "@SP", "M=D");
+    // Tail calls made, for the stats
+    private int tailCallSites = 0;
+    // While recording a file for the cache: where it started and its stats so far
+    private RecordingSink recorder;
+    private int recordFirstLine;
+    private HashMap<String, Integer> recordLabelBase;
+    private HashMap<String, Integer> recordCounters;
+    private static final AsmWriter.Template JUMP = AsmWriter.template("0;JMP");
+    private static final AsmWriter.Template JUMP_IF_D = AsmWriter.template("D;JNE");
+    private static final AsmWriter.Template JUMP_IF_LE = AsmWriter.template("D;JLE");
+    private static final AsmWriter.Template JUMP_IF_GE = AsmWriter.template("D;JGE");
+    private static final AsmWriter.Template INIT_LOCAL = AsmWriter.template(
+            "@LCL", "D=M", "@0", "A=D+A", "M=0", "@SP", "M=M+1");
+    private static final AsmWriter.Template CALL_SAVE_RETURN = AsmWriter.template(
+            "D=A", "@SP", "A=M", "M=D", "@SP", "M=M+1");
+    private static final AsmWriter.Template CALL_REPOSITION = AsmWriter.template(
+            "@SP", "D=M", "@LCL", "M=D", "@5", "D=D-A");
+    private static final AsmWriter.Template CALL_SET_ARG = AsmWriter.template("D=D-A", "@ARG", "M=D");
+    private static final AsmWriter.Template RETURN = AsmWriter.template(
+            // Save endFrame in R14 and retAddr in R15
+            "@LCL", "D=M", "@R14", "M=D", "@5", "A=D-A", "D=M", "@R15", "M=D",
+            // Pop into RAM[ARG] -> *ARG = pop
+            "@SP", "M=M-1", "A=M", "D=M", "@ARG", "A=M", "M=D",
+            // Reposition
+            "@ARG", "D=M+1", "@SP", "M=D",
+            // Restoration
+            "@R14", "AM=M-1", "D=M", "@THAT", "M=D",
+            "@R14", "AM=M-1", "D=M", "@THIS", "M=D",
+            "@R14", "AM=M-1", "D=M", "@ARG", "M=D",
+            "@R14", "AM=M-1", "D=M", "@LCL", "M=D",
+            "@R15", "A=M", "0;JMP");
+    private static final AsmWriter.Template ADD = AsmWriter.template("@SP", "M=M-1", "A=M", "D=M", "A=A-1", "M=D+M");
+    private static final AsmWriter.Template SUB = AsmWriter.template("@SP", "M=M-1", "A=M", "D=M", "A=A-1", "M=M-D");
+    private static final AsmWriter.Template NEG = AsmWriter.template("@SP", "A=M-1", "M=-M");
+    private static final AsmWriter.Template AND = AsmWriter.template("@SP", "AM=M-1", "D=M", "A=A-1", "M=D&M");
+    private static final AsmWriter.Template OR = AsmWriter.template("@SP", "AM=M-1", "D=M", "A=A-1", "M=D|M");
+    private static final AsmWriter.Template NOT = AsmWriter.template("@SP", "A=M-1", "M=!M");
+    private static final AsmWriter.Template COMPARE = AsmWriter.template("@SP", "AM=M-1", "D=M", "A=A-1", "D=M-D", "M=0");
+    private static final AsmWriter.Template COMPARE_TRUE = AsmWriter.template("@SP", "A=M-1", "M=-1");
+    private static final AsmWriter.Template SHARED_COMPARE_CALL = AsmWriter.template("D=A");
+    private static final AsmWriter.Template SHARED_COMPARE_ENTER = AsmWriter.template("@R13", "M=D");
+    private static final AsmWriter.Template SHARED_COMPARE_RETURN = AsmWriter.template("@R13", "A=M", "0;JMP");
+
+    // Words of the two comparison strategies, as writeComparison and writeComparisonRoutine emit
+    // them from the templates above, an @address being one word and the jumps all one template long.
+    // Used by comparisonStats, and for the return addresses the code jumps to.
+    private static final int INLINE_COMPARE_WORDS = COMPARE.size() + 1 + JUMP_IF_D.size() + COMPARE_TRUE.size();
+    private static final int SHARED_CALL_WORDS = 1 + SHARED_COMPARE_CALL.size() + 1 + JUMP.size();
+    private static final int SHARED_ROUTINE_WORDS = SHARED_COMPARE_ENTER.size() + INLINE_COMPARE_WORDS
+            + SHARED_COMPARE_RETURN.size();
 
     public CodeWriter(String outputFileName, Boolean singleFile) throws IOException{
+        this(outputFileName, singleFile, false, false);
+    }
+
+    // binary: assemble straight into a .hack file, listing: also write the .asm text next to it
+    public CodeWriter(String outputFileName, Boolean singleFile, boolean binary, boolean listing) throws IOException{
         String name;
 
         String[] strArr = outputFileName.split("/");
@@ -20,475 +129,897 @@ public class CodeWriter {
         
         if (!outputFileName.endsWith(".vm")) {
             
-            name = outputFileName + "/" + fileName + ".asm";
+            name = outputFileName + "/" + fileName;
         
         } else {
-            name = outputFileName.replace(".vm", "") + ".asm";
+            name = outputFileName.replace(".vm", "");
         }
         
-        fileWriter = new FileWriter(name);
+        if (binary) {
+            sink = new HackAssembler(name + ".hack", listing ? new AsmWriter(name + ".asm") : null);
+        } else {
+            sink = new AsmWriter(name + ".asm");
+        }
+        setScope();
         // ./staticboi.vm
 
 
         if (singleFile == false && !bootStrapped) {
             // Bootstrap Code
             bootStrapped = true;
-            stringToWrite.append("// bootstrap" + "\n");
-            appendToStringBuilder(stringToWrite, "@256" + "\n");
-            appendToStringBuilder(stringToWrite, "D=A" + "\n");
-            appendToStringBuilder(stringToWrite, "@SP" + "\n");
-            appendToStringBuilder(stringToWrite, "M=D" + "\n");
+            sink.writeComment("bootstrap");
+            emit(BOOTSTRAP);
             currentFuncName = "Sys.init";
+            setScope();
             writeCall(currentFuncName, 0);
         }
     }
-    
-    public void close(boolean lastFile) throws IOException {
-        appendToStringBuilder(stringToWrite, "@" + lineCounter + "\n");
-        appendToStringBuilder(stringToWrite, "0;JMP");
-        if (!lastFile) { 
-            stringToWrite.append("\n");
+
+    // Emit eq/gt/lt as calls to one shared routine each instead of inline code
+    public void setSharedComparisons(boolean sharedComparisons) {
+        this.sharedComparisons = sharedComparisons;
+    }
+
+    // Generates the following code without emitting it, e.g. for a function that is never called
+    public void setDiscarding(boolean discarding) {
+        if (discarding == isDiscarding()) {
+            return;
         }
-        
+
+        if (discarding) {
+            keptSink = sink;
+            keptLineCounter = lineCounter;
+            sink = new NullSink();
+        } else {
+            discardedWords += lineCounter - keptLineCounter;
+            lineCounter = keptLineCounter;
+            sink = keptSink;
+            keptSink = null;
+        }
+    }
+
+    public boolean isDiscarding() {
+        return keptSink != null;
+    }
+
+    // ROM words the discarded code would have taken
+    public int discardedWords() {
+        return discardedWords;
+    }
+
+    public void close(boolean lastFile) throws IOException {
+        setDiscarding(false);
+        emitRomAddress(lineCounter);
+        emit(JUMP);
+
         if (lastFile) {
-            fileWriter.write(stringToWrite.toString());
-            fileWriter.close();
+            // The routines sit after the final infinite loop, so they only run when called
+            if (sharedComparisons) {
+                writeComparisonRoutine("eq", JUMP_IF_D);
+                writeComparisonRoutine("gt", JUMP_IF_LE);
+                writeComparisonRoutine("lt", JUMP_IF_GE);
+            }
+            sink.close();
         }
     }
 
-    private void appendToStringBuilder(StringBuilder stringBuilder, String string) {
-        stringBuilder.append(string);
+    private void emit(AsmWriter.Template template) throws IOException {
+        sink.write(template);
+        lineCounter += template.size();
+    }
+
+    // @value
+    private void emitAddress(int value) throws IOException {
+        sink.writeAddress(value);
+        lineCounter++;
+    }
+
+    // @symbol
+    private void emitAddress(String symbol) throws IOException {
+        sink.writeAddress(symbol);
         lineCounter++;
     }
-    
-    public void writeLabel(String command) {
-        stringToWrite.append("// label " + command + "\n");
+
+    // @prefixname
+    private void emitAddress(String prefix, String name) throws IOException {
+        sink.writeAddress(prefix, name);
+        lineCounter++;
+    }
+
+    // @prefixnumber
+    private void emitAddress(String prefix, int number) throws IOException {
+        sink.writeAddress(prefix, number);
+        lineCounter++;
+    }
+
+    // @value where value is a ROM address, which moves when the code is replayed elsewhere
+    private void emitRomAddress(int value) throws IOException {
+        if (recorder != null && sink == recorder) {
+            recorder.writeRomAddress(value, recordFirstLine);
+        } else {
+            sink.writeAddress(value);
+        }
+        lineCounter++;
+    }
+
+    // @callee$ret.count
+    private void emitReturnAddress(String callee, int count) throws IOException {
+        if (recorder != null && sink == recorder) {
+            recorder.writeReturnAddress(callee, count, recordLabelBase.getOrDefault(callee, 0));
+        } else {
+            sink.writeAddress(callee + "$ret.", count);
+        }
+        lineCounter++;
+    }
+
+    private void writeReturnLabel(String callee, int count) throws IOException {
+        if (recorder != null && sink == recorder) {
+            recorder.writeReturnLabel(callee, count, recordLabelBase.getOrDefault(callee, 0));
+        } else {
+            sink.writeLabel(callee + "$ret.", count);
+        }
+    }
+
+    private void setScope() {
+        labelScope = fileName + "." + currentFuncName + "$";
+        staticScope = fileName + ".";
+    }
+
+    public void writeLabel(String command) throws IOException {
+        sink.writeComment("label", command);
 
         // Doesn't count as a row
-        stringToWrite.append("(" + fileName + "." + currentFuncName + "$" + command + ")" + "\n"); // (Sys.init$label)
+        sink.writeLabel(labelScope, command); // (Sys.init$label)
     }
 
-    public void writeGoto(String command) {
-        stringToWrite.append("// goto " + command + "\n");
-        appendToStringBuilder(stringToWrite, "@" + fileName + "." + currentFuncName + "$" + command + "\n");
-        appendToStringBuilder(stringToWrite, "0;JMP" + "\n");
+    public void writeGoto(String command) throws IOException {
+        sink.writeComment("goto", command);
+        emitAddress(labelScope, command);
+        emit(JUMP);
 
         // @Sys.init$label
         // 0;JMP
     }
 
-    public void writeIf(String command) {
-        stringToWrite.append("// if-goto " + command + "\n");
-        appendToStringBuilder(stringToWrite, "@SP" + "\n");
-        appendToStringBuilder(stringToWrite, "M=M-1" + "\n");
-        appendToStringBuilder(stringToWrite, "A=M" + "\n");
-        appendToStringBuilder(stringToWrite, "D=M" + "\n");
-        appendToStringBuilder(stringToWrite, "@" + fileName + "." + currentFuncName + "$" + command + "\n");
-        appendToStringBuilder(stringToWrite, "D;JNE" + "\n");
+    public void writeIf(String command) throws IOException {
+        sink.writeComment("if-goto", command);
+        emit(POP_D);
+        emitAddress(labelScope, command);
+        emit(JUMP_IF_D);
     }
 
-    public void writeFunction(String command, int nVars) {
-        fileName = command.split("\\.")[0];
-        currentFuncName = command.split("\\.")[1];
-        stringToWrite.append("// function " + command + " " + nVars + "\n");
-        stringToWrite.append("(" + command + ")" + "\n");
+    public void writeFunction(String command, int nVars) throws IOException {
+        int dot = command.indexOf('.');
+        fileName = command.substring(0, dot);
+        currentFuncName = command.substring(dot + 1);
+        setScope();
+        sink.writeComment("function", command, nVars);
+        sink.writeLabel(command);
         for (int i = 0; i < nVars; i++) {
-            appendToStringBuilder(stringToWrite, "@LCL" + "\n");
-            appendToStringBuilder(stringToWrite, "D=M" + "\n");
-            appendToStringBuilder(stringToWrite, "@0" + "\n");
-            appendToStringBuilder(stringToWrite, "A=D+A" + "\n");
-            appendToStringBuilder(stringToWrite, "M=0" + "\n");
-            appendToStringBuilder(stringToWrite, "@SP" + "\n");
-            appendToStringBuilder(stringToWrite, "M=M+1" + "\n");
+            emit(INIT_LOCAL);
         }
     }
 
-    public void writeCall(String command, int nArgs) {
-        fileName = command.split("\\.")[0];
-        currentFuncName = command.split("\\.")[1];
-        stringToWrite.append("// call " + command + "\n");
-
-        int returnCount = labelMap.getOrDefault(command, 0);
-        labelMap.put(command, ++returnCount);
+    public void writeCall(String command, int nArgs) throws IOException {
+        // The callee's name only names the jump target, labels and statics stay in the caller's scope
+        sink.writeComment("call", command);
 
-        String returnAdr = command + "$ret." + returnCount;
+        // Dropped code doesn't use up return label numbers, so the cache can skip it too
+        int returnCount = labelMap.getOrDefault(command, 0) + 1;
+        if (!isDiscarding()) {
+            labelMap.put(command, returnCount);
+        }
 
-        appendToStringBuilder(stringToWrite, "@" + returnAdr + "\n");
-        appendToStringBuilder(stringToWrite, "D=A\n");
-        appendToStringBuilder(stringToWrite, "@SP\n");
-        appendToStringBuilder(stringToWrite, "A=M\n");
-        appendToStringBuilder(stringToWrite, "M=D\n");
-        appendToStringBuilder(stringToWrite, "@SP\n");
-        appendToStringBuilder(stringToWrite, "M=M+1\n");
+        emitReturnAddress(command, returnCount);
+        emit(CALL_SAVE_RETURN);
 
         functionPush("LCL");
         functionPush("ARG");
         functionPush("THIS");
         functionPush("THAT");
 
-        appendToStringBuilder(stringToWrite, "@SP" + "\n");
-        appendToStringBuilder(stringToWrite, "D=M" + "\n");
-        appendToStringBuilder(stringToWrite, "@LCL" + "\n");
-        appendToStringBuilder(stringToWrite, "M=D" + "\n");
+        emit(CALL_REPOSITION);
+        emitAddress(nArgs);
+        emit(CALL_SET_ARG);
+
+        emitAddress(command);
+        emit(JUMP);
+
+        writeReturnLabel(command, returnCount); // (Sys.init$ret.1)
+    }
+
+    // Replaces call command nArgs with the callee's body. The callee's arguments and locals live
+    // on the stack right where a normal call would find them, [args][locals][saved THIS/THAT],
+    // and the stack depth of every command is known, so they are addressed relative to SP.
+    public void writeInlineCall(String command, int nArgs, Inliner.Function function) throws IOException {
+        sink.writeComment("inline", command, nArgs);
+        if (!isDiscarding()) {
+            inlinedSites.put(command, inlinedSites.getOrDefault(command, 0) + 1);
+        }
+
+        for (int i = 0; i < function.nVars; i++) {
+            emit(PUSH_ZERO);
+        }
+        if (function.writesThis) {
+            functionPush("THIS");
+        }
+        if (function.writesThat) {
+            functionPush("THAT");
+        }
 
-        appendToStringBuilder(stringToWrite, "@5" + "\n");
-        appendToStringBuilder(stringToWrite, "D=D-A" + "\n");
+        // Words between the first argument and SP
+        int frame = nArgs + function.nVars + (function.writesThis ? 1 : 0) + (function.writesThat ? 1 : 0);
+        int depth = frame;
+
+        // Statics belong to the callee's file
+        String callerStaticScope = staticScope;
+        staticScope = function.fileName + ".";
+
+        for (int i = 0; i < function.size(); i++) {
+            Parser.opcode opcode = function.opcodes.get(i);
+            Parser.segmentType segment = function.segments.get(i);
+            int offset = function.numbers.get(i);
+
+            switch (opcode) {
+                case PUSH:
+                    if (segment == Parser.segmentType.ARGUMENT || segment == Parser.segmentType.LOCAL) {
+                        sink.writeComment("push", segment.text, offset);
+                        writeStackSlot(depth - frameOffset(segment, offset, nArgs));
+                        emit(D_EQ_M);
+                        emit(PUSH_D);
+                    } else {
+                        writePushPop(Parser.commandType.C_PUSH, segment, offset);
+                    }
+                    depth++;
+                    break;
+
+                case POP:
+                    if (segment == Parser.segmentType.ARGUMENT || segment == Parser.segmentType.LOCAL) {
+                        sink.writeComment("pop", segment.text, offset);
+                        writePopToStackSlot(depth - frameOffset(segment, offset, nArgs));
+                    } else {
+                        writePushPop(Parser.commandType.C_POP, segment, offset);
+                    }
+                    depth--;
+                    break;
+
+                default:
+                    writeArithmetic(opcode);
+                    if (opcode != Parser.opcode.NEG && opcode != Parser.opcode.NOT) {
+                        depth--;
+                    }
+                    break;
+            }
+        }
 
-        appendToStringBuilder(stringToWrite, "@" + nArgs + "\n");
-        appendToStringBuilder(stringToWrite, "D=D-A" + "\n");
-        appendToStringBuilder(stringToWrite, "@ARG" + "\n");
-        appendToStringBuilder(stringToWrite, "M=D" + "\n");
+        staticScope = callerStaticScope;
 
-        appendToStringBuilder(stringToWrite, "@" + fileName + "." + currentFuncName + "\n");
-        appendToStringBuilder(stringToWrite, "0;JMP" + "\n");
+        sink.writeComment("return ");
+        int saved = nArgs + function.nVars;
+        if (function.writesThis) {
+            writeRestorePointer("THIS", depth - saved++);
+        }
+        if (function.writesThat) {
+            writeRestorePointer("THAT", depth - saved);
+        }
 
-        stringToWrite.append("(" + returnAdr + ")" + "\n"); // (Sys.init$ret.1)
-        
+        // The return value replaces the first argument, nothing to do if it is already there
+        if (depth > 1) {
+            writePopToStackSlot(depth);
+            emit(SP_EQ_A_PLUS_1);
+        }
+    }
+
+    // Position of argument/local offset in the inlined frame
+    private int frameOffset(Parser.segmentType segment, int offset, int nArgs) {
+        return segment == Parser.segmentType.ARGUMENT ? offset : nArgs + offset;
+    }
+
+    // A = SP - distance
+    private void writeStackSlot(int distance) throws IOException {
+        if (distance <= SLOT_CHAIN_LIMIT) {
+            emit(STACK_TOP);
+            for (int i = 1; i < distance; i++) {
+                emit(A_EQ_A_MINUS_1);
+            }
+        } else {
+            emitAddress(distance);
+            emit(D_EQ_A);
+            emit(A_EQ_M_MINUS_D);
+        }
+    }
+
+    // RAM[SP - distance] = pop, leaves A at the slot
+    private void writePopToStackSlot(int distance) throws IOException {
+        if (distance <= POP_SLOT_CHAIN_LIMIT) {
+            // After the pop A points one below the old SP
+            emit(POP_D_AM);
+            for (int i = 1; i < distance; i++) {
+                emit(A_EQ_A_MINUS_1);
+            }
+        } else {
+            emitAddress(distance);
+            emit(D_EQ_A);
+            emit(D_EQ_M_MINUS_D);
+            emit(SET_R13);
+            emit(POP_D_AM);
+            emit(AT_R13);
+        }
+        emit(M_EQ_D);
+    }
+
+    private void writeRestorePointer(String pointer, int distance) throws IOException {
+        writeStackSlot(distance);
+        emit(D_EQ_M);
+        emitAddress(pointer);
+        emit(M_EQ_D);
+    }
+
+    // Inlined call sites per callee
+    public String inlineStats() {
+        int sites = 0;
+        StringBuilder functions = new StringBuilder();
+        for (String function : inlinedSites.keySet()) {
+            sites += inlinedSites.get(function);
+            functions.append("\n  ").append(function).append(": ").append(inlinedSites.get(function));
+        }
+        return "inlined: " + sites + " call sites" + functions;
+    }
+
+    // "call command nArgs" followed by "return": the callee takes over the current frame.
+    // Its arguments go where the caller's were, the caller's saved frame moves down right
+    // after them, and it returns straight to the caller's caller. The caller must have been
+    // called with at least nArgs arguments, so nothing is overwritten before it is read.
+    // frameInPlace: the caller always has exactly nArgs arguments, so the frame doesn't move.
+    public void writeTailCall(String command, int nArgs, boolean frameInPlace) throws IOException {
+        sink.writeComment("tail-call", command, nArgs);
+        if (!isDiscarding()) {
+            tailCallSites++;
+        }
+
+        // The last argument is on top of the stack
+        for (int i = nArgs - 1; i >= 0; i--) {
+            writeSegmentPop(Parser.segmentType.ARGUMENT, i);
+        }
+
+        if (!frameInPlace) {
+            // Copied upwards from LCL - 5 to R14 = ARG + nArgs, which is never above it
+            emit(TAIL_FRAME_TARGET);
+            emitAddress(nArgs);
+            emit(D_EQ_D_PLUS_A);
+            emitAddress("R14");
+            emit(M_EQ_D);
+            for (int i = 5; i > 0; i--) {
+                emit(TAIL_FRAME_SOURCE);
+                emitAddress(i);
+                emit(TAIL_FRAME_WORD);
+            }
+        }
+
+        // LCL = SP = ARG + nArgs + 5, as after a call
+        emit(TAIL_FRAME_TARGET);
+        emitAddress(nArgs + 5);
+        emit(D_EQ_D_PLUS_A);
+        emit(TAIL_SET_LCL);
+
+        emitAddress(command);
+        emit(JUMP);
+    }
+
+    // Scope that code outside a function would use, it carries over from the previous file
+    public String scope() {
+        return labelScope;
+    }
+
+    // Records everything written until stopRecording, see RecordingSink
+    public void startRecording() {
+        recorder = new RecordingSink(sink, sink instanceof AsmWriter);
+        sink = recorder;
+        recordFirstLine = lineCounter;
+        recordLabelBase = new HashMap<>(labelMap);
+        recordCounters = counters();
+    }
+
+    public TranslationCache.Entry stopRecording() throws IOException {
+        setDiscarding(false);
+        // The scope carries over to the next file
+        recorder.writeScope(fileName, String.valueOf(currentFuncName));
+        recorder.close();
+        sink = recorder.target();
+
+        // The stats this file added
+        HashMap<String, Integer> counters = counters();
+        for (String counter : recordCounters.keySet()) {
+            counters.put(counter, counters.getOrDefault(counter, 0) - recordCounters.get(counter));
+        }
+        HashMap<String, Integer> added = new LinkedHashMap<>();
+        for (String counter : counters.keySet()) {
+            if (counters.get(counter) != 0) {
+                added.put(counter, counters.get(counter));
+            }
+        }
+
+        TranslationCache.Entry entry = new TranslationCache.Entry(
+                recorder.events(), recorder.text(), recorder.pieceEnds(), lineCounter - recordFirstLine, added);
+        recorder = null;
+        return entry;
+    }
+
+    // Writes a recorded file again at the current position, as if it was translated here
+    public void replay(TranslationCache.Entry entry) throws IOException {
+        HashMap<String, Integer> labelBase = new HashMap<>(labelMap);
+        int firstLine = lineCounter;
+        DataInputStream table = new DataInputStream(new ByteArrayInputStream(entry.events));
+        String[] strings = new String[table.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = table.readUTF();
+        }
+        ByteBuffer in = ByteBuffer.wrap(entry.events, entry.events.length - table.available(), table.available());
+
+        // Recorded as text: copy it, and write only the numbers that move
+        AsmWriter text = null;
+        int piece = 0;
+        if (entry.text != null) {
+            if (!(sink instanceof AsmWriter)) {
+                throw new IOException("Cache entry is .asm text");
+            }
+            text = (AsmWriter) sink;
+        }
+
+        while (in.hasRemaining()) {
+            if (text != null) {
+                writePiece(text, entry, piece++);
+            }
+            byte kind = in.get();
+            switch (kind) {
+                case RecordingSink.TEMPLATE:
+                    emit(AsmWriter.template(Short.toUnsignedInt(in.getShort())));
+                    break;
+
+                case RecordingSink.ADDRESS:
+                    emitAddress(Short.toUnsignedInt(in.getShort()));
+                    break;
+
+                case RecordingSink.ADDRESS_SYMBOL:
+                    emitAddress(strings[in.getInt()]);
+                    break;
+
+                case RecordingSink.ADDRESS_PREFIX_NAME:
+                    emitAddress(strings[in.getInt()], strings[in.getInt()]);
+                    break;
+
+                case RecordingSink.ADDRESS_PREFIX_NUMBER:
+                    emitAddress(strings[in.getInt()], in.getInt());
+                    break;
+
+                case RecordingSink.LABEL:
+                    sink.writeLabel(strings[in.getInt()]);
+                    break;
+
+                case RecordingSink.LABEL_PREFIX_NAME:
+                    sink.writeLabel(strings[in.getInt()], strings[in.getInt()]);
+                    break;
+
+                case RecordingSink.LABEL_PREFIX_NUMBER:
+                    sink.writeLabel(strings[in.getInt()], in.getInt());
+                    break;
+
+                case RecordingSink.COMMENT:
+                    sink.writeComment(strings[in.getInt()]);
+                    break;
+
+                case RecordingSink.COMMENT_ARG:
+                    sink.writeComment(strings[in.getInt()], strings[in.getInt()]);
+                    break;
+
+                case RecordingSink.COMMENT_ARG_NUMBER:
+                    sink.writeComment(strings[in.getInt()], strings[in.getInt()], in.getInt());
+                    break;
+
+                case RecordingSink.ROM_ADDRESS:
+                    emitRomAddress(firstLine + in.getInt());
+                    break;
+
+                case RecordingSink.RETURN_ADDRESS:
+                case RecordingSink.RETURN_LABEL: {
+                    String callee = strings[in.getInt()];
+                    int count = labelBase.getOrDefault(callee, 0) + in.getInt();
+                    labelMap.put(callee, Math.max(labelMap.getOrDefault(callee, 0), count));
+                    if (kind == RecordingSink.RETURN_ADDRESS) {
+                        emitReturnAddress(callee, count);
+                    } else {
+                        writeReturnLabel(callee, count);
+                    }
+                    break;
+                }
+
+                case RecordingSink.SCOPE:
+                    fileName = strings[in.getInt()];
+                    currentFuncName = strings[in.getInt()];
+                    setScope();
+                    break;
+
+                default:
+                    throw new IOException("Corrupt cache entry");
+            }
+        }
+
+        if (text != null) {
+            writePiece(text, entry, piece);
+            lineCounter = firstLine + entry.words;
+        }
+
+        for (String counter : entry.counters.keySet()) {
+            addCounter(counter, entry.counters.get(counter));
+        }
     }
 
-    private void functionPush(String location) {
-        stringToWrite.append("// push " + location + "\n");
-        appendToStringBuilder(stringToWrite, "@" + location + "\n");
-        appendToStringBuilder(stringToWrite, "D=M\n");
-        appendToStringBuilder(stringToWrite, "@SP\n");
-        appendToStringBuilder(stringToWrite, "A=M\n");
-        appendToStringBuilder(stringToWrite, "M=D\n");
-        appendToStringBuilder(stringToWrite, "@SP\n");
-        appendToStringBuilder(stringToWrite, "M=M+1\n");
+    private void writePiece(AsmWriter text, TranslationCache.Entry entry, int piece) throws IOException {
+        int start = piece == 0 ? 0 : entry.pieceEnds[piece - 1];
+        text.writeRaw(entry.text, start, entry.pieceEnds[piece] - start);
+    }
+
+    // All the stats as one flat map, so a cached file can add its share back
+    private HashMap<String, Integer> counters() {
+        // In the order the stats list them, which a replay has to keep
+        HashMap<String, Integer> counters = new LinkedHashMap<>();
+        for (String command : comparisonSites.keySet()) {
+            counters.put("compare " + command, comparisonSites.get(command));
+        }
+        for (String form : pushPopSites.keySet()) {
+            counters.put("sites " + form, pushPopSites.get(form)[0]);
+            counters.put("saved " + form, pushPopSites.get(form)[1]);
+        }
+        for (String function : inlinedSites.keySet()) {
+            counters.put("inline " + function, inlinedSites.get(function));
+        }
+        counters.put("tail", tailCallSites);
+        counters.put("discarded", discardedWords);
+        return counters;
+    }
+
+    private void addCounter(String counter, int count) {
+        int space = counter.indexOf(' ');
+        String kind = space == -1 ? counter : counter.substring(0, space);
+        String name = counter.substring(space + 1);
+
+        switch (kind) {
+            case "compare":
+                comparisonSites.put(name, comparisonSites.getOrDefault(name, 0) + count);
+                break;
+
+            case "sites":
+                pushPopCounts(name)[0] += count;
+                break;
+
+            case "saved":
+                pushPopCounts(name)[1] += count;
+                break;
+
+            case "inline":
+                inlinedSites.put(name, inlinedSites.getOrDefault(name, 0) + count);
+                break;
+
+            case "tail":
+                tailCallSites += count;
+                break;
+
+            case "discarded":
+                discardedWords += count;
+                break;
+        }
+    }
+
+    public String tailCallStats() {
+        return "tail calls: " + tailCallSites;
+    }
+
+    private void functionPush(String location) throws IOException {
+        sink.writeComment("push", location);
+        emitAddress(location);
+        emit(D_EQ_M);
+        emit(PUSH_D);
     }
     
-    public void writeReturn() {
+    public void writeReturn() throws IOException {
         // currentFuncName = "";
-        stringToWrite.append("// return \n");
-
-        // Save endFrame and retAddr
-        appendToStringBuilder(stringToWrite, "@LCL" + "\n");
-        appendToStringBuilder(stringToWrite, "D=M" + "\n");
-        appendToStringBuilder(stringToWrite, "@endFrame" + "\n");
-        appendToStringBuilder(stringToWrite, "M=D" + "\n");
-        appendToStringBuilder(stringToWrite, "@5" + "\n");
-        appendToStringBuilder(stringToWrite, "A=D-A" + "\n");
-        appendToStringBuilder(stringToWrite, "D=M" + "\n");
-        appendToStringBuilder(stringToWrite, "@retAddr" + "\n");
-        appendToStringBuilder(stringToWrite, "M=D" + "\n");
-
-        // Pop into RAM[ARG] -> *ARG = pop
-        appendToStringBuilder(stringToWrite, "@SP" + "\n");
-        appendToStringBuilder(stringToWrite, "M=M-1" + "\n");
-        appendToStringBuilder(stringToWrite, "A=M" + "\n");
-        appendToStringBuilder(stringToWrite, "D=M" + "\n");
-        appendToStringBuilder(stringToWrite, "@ARG" + "\n");
-        appendToStringBuilder(stringToWrite, "A=M" + "\n");
-        appendToStringBuilder(stringToWrite, "M=D" + "\n");
-
-        // Reposition
-        appendToStringBuilder(stringToWrite, "@ARG" + "\n");
-        appendToStringBuilder(stringToWrite, "D=M+1" + "\n");
-        appendToStringBuilder(stringToWrite, "@SP" + "\n");
-        appendToStringBuilder(stringToWrite, "M=D" + "\n");
-
-        // Restoration
-        appendToStringBuilder(stringToWrite, "@endFrame" + "\n");
-        appendToStringBuilder(stringToWrite, "AM=M-1" + "\n");
-        appendToStringBuilder(stringToWrite, "D=M" + "\n");
-        appendToStringBuilder(stringToWrite, "@THAT" + "\n");
-        appendToStringBuilder(stringToWrite, "M=D" + "\n");
-
-        appendToStringBuilder(stringToWrite, "@endFrame" + "\n");
-        appendToStringBuilder(stringToWrite, "AM=M-1" + "\n");
-        appendToStringBuilder(stringToWrite, "D=M" + "\n");
-        appendToStringBuilder(stringToWrite, "@THIS" + "\n");
-        appendToStringBuilder(stringToWrite, "M=D" + "\n");
-
-        appendToStringBuilder(stringToWrite, "@endFrame" + "\n");
-        appendToStringBuilder(stringToWrite, "AM=M-1" + "\n");
-        appendToStringBuilder(stringToWrite, "D=M" + "\n");
-        appendToStringBuilder(stringToWrite, "@ARG" + "\n");
-        appendToStringBuilder(stringToWrite, "M=D" + "\n");
-
-        appendToStringBuilder(stringToWrite, "@endFrame" + "\n");
-        appendToStringBuilder(stringToWrite, "AM=M-1" + "\n");
-        appendToStringBuilder(stringToWrite, "D=M" + "\n");
-        appendToStringBuilder(stringToWrite, "@LCL" + "\n");
-        appendToStringBuilder(stringToWrite, "M=D" + "\n");
-
-        appendToStringBuilder(stringToWrite, "@retAddr" + "\n");
-        appendToStringBuilder(stringToWrite, "A=M" + "\n");
-        appendToStringBuilder(stringToWrite, "0;JMP" + "\n");
-    }
-
-    public void writeArithmetic(String command) {
-        stringToWrite.append("// " + command + "\n");
+        sink.writeComment("return ");
+        emit(RETURN);
+    }
+
+    public void writeArithmetic(Parser.opcode command) throws IOException {
+        sink.writeComment(command.text);
 
         switch (command) {
-            case "add":
-                appendToStringBuilder(stringToWrite, "@SP" + "\n");
-                appendToStringBuilder(stringToWrite, "M=M-1" + "\n");
-                appendToStringBuilder(stringToWrite, "A=M" + "\n");
-                appendToStringBuilder(stringToWrite, "D=M" + "\n");
-                appendToStringBuilder(stringToWrite, "A=A-1" + "\n");
-                appendToStringBuilder(stringToWrite, "M=D+M" + "\n");
+            case ADD:
+                emit(ADD);
                 break;
             
-            case "sub":
-                appendToStringBuilder(stringToWrite, "@SP" + "\n");
-                appendToStringBuilder(stringToWrite, "M=M-1" + "\n");
-                appendToStringBuilder(stringToWrite, "A=M" + "\n");
-                appendToStringBuilder(stringToWrite, "D=M" + "\n");
-                appendToStringBuilder(stringToWrite, "A=A-1" + "\n");
-                appendToStringBuilder(stringToWrite, "M=M-D" + "\n");
+            case SUB:
+                emit(SUB);
                 break;
         
-            
-            case "neg":
-                appendToStringBuilder(stringToWrite, "@SP" + "\n");
-                appendToStringBuilder(stringToWrite, "A=M-1" + "\n");
-                appendToStringBuilder(stringToWrite, "M=-M" + "\n");
+            case NEG:
+                emit(NEG);
                 break;
         
-            
-            case "eq":
-                appendToStringBuilder(stringToWrite, "@SP" + "\n");
-                appendToStringBuilder(stringToWrite, "AM=M-1" + "\n");
-                appendToStringBuilder(stringToWrite, "D=M" + "\n");    
-                appendToStringBuilder(stringToWrite, "A=A-1" + "\n");    
-                appendToStringBuilder(stringToWrite, "D=M-D" + "\n");    
-                appendToStringBuilder(stringToWrite, "M=0" + "\n");    
-                appendToStringBuilder(stringToWrite, "@" + (lineCounter + 5) + "\n");    
-                appendToStringBuilder(stringToWrite, "D;JNE" + "\n");    
-                appendToStringBuilder(stringToWrite, "@SP" + "\n");    
-                appendToStringBuilder(stringToWrite, "A=M-1" + "\n");    
-                appendToStringBuilder(stringToWrite, "M=-1" + "\n");    
+            case EQ:
+                writeComparison(command.text, JUMP_IF_D);
                 break;
             
-            case "gt":
-                appendToStringBuilder(stringToWrite, "@SP" + "\n");
-                appendToStringBuilder(stringToWrite, "AM=M-1" + "\n");
-                appendToStringBuilder(stringToWrite, "D=M" + "\n");
-                appendToStringBuilder(stringToWrite, "A=A-1" + "\n");
-                appendToStringBuilder(stringToWrite, "D=M-D" + "\n");
-                appendToStringBuilder(stringToWrite, "M=0" + "\n");
-                appendToStringBuilder(stringToWrite, "@" + (lineCounter + 5) + "\n");
-                appendToStringBuilder(stringToWrite, "D;JLE" + "\n");
-                appendToStringBuilder(stringToWrite, "@SP" + "\n");
-                appendToStringBuilder(stringToWrite, "A=M-1" + "\n");
-                appendToStringBuilder(stringToWrite, "M=-1" + "\n");
+            case GT:
+                writeComparison(command.text, JUMP_IF_LE);
                 break;
         
-            case "lt":
-                appendToStringBuilder(stringToWrite, "@SP" + "\n");
-                appendToStringBuilder(stringToWrite, "AM=M-1" + "\n");
-                appendToStringBuilder(stringToWrite, "D=M" + "\n");
-                appendToStringBuilder(stringToWrite, "A=A-1" + "\n");
-                appendToStringBuilder(stringToWrite, "D=M-D" + "\n");
-                appendToStringBuilder(stringToWrite, "M=0" + "\n");
-                appendToStringBuilder(stringToWrite, "@" + (lineCounter + 5) + "\n");
-                appendToStringBuilder(stringToWrite, "D;JGE" + "\n");
-                appendToStringBuilder(stringToWrite, "@SP" + "\n");
-                appendToStringBuilder(stringToWrite, "A=M-1" + "\n");
-                appendToStringBuilder(stringToWrite, "M=-1" + "\n");
+            case LT:
+                writeComparison(command.text, JUMP_IF_GE);
                 break;
         
-            case "and":
-                appendToStringBuilder(stringToWrite, "@SP" + "\n");
-                appendToStringBuilder(stringToWrite, "AM=M-1" + "\n");
-                appendToStringBuilder(stringToWrite, "D=M" + "\n");
-                appendToStringBuilder(stringToWrite, "A=A-1" + "\n");
-                appendToStringBuilder(stringToWrite, "M=D&M" + "\n");
+            case AND:
+                emit(AND);
                 break;
             
-            case "or":
-                appendToStringBuilder(stringToWrite, "@SP" + "\n");
-                appendToStringBuilder(stringToWrite, "AM=M-1" + "\n");
-                appendToStringBuilder(stringToWrite, "D=M" + "\n");
-                appendToStringBuilder(stringToWrite, "A=A-1" + "\n");
-                appendToStringBuilder(stringToWrite, "M=D|M" + "\n");
+            case OR:
+                emit(OR);
                 break;
             
-            case "not":
-                appendToStringBuilder(stringToWrite, "@SP" + "\n");
-                appendToStringBuilder(stringToWrite, "A=M-1" + "\n");
-                appendToStringBuilder(stringToWrite, "M=!M" + "\n");
+            case NOT:
+                emit(NOT);
                 break;
         
             default:
-                appendToStringBuilder(stringToWrite, command + " NOTHING HAPPENED\n");
-                break;
+                throw new IllegalArgumentException("Not an arithmetic command: " + command.text);
         }
+    }
 
+    private void writeComparison(String command, AsmWriter.Template jump) throws IOException {
+        if (!isDiscarding()) {
+            comparisonSites.put(command, comparisonSites.getOrDefault(command, 0) + 1);
+        }
 
-    }
+        if (sharedComparisons) {
+            // Return address in D, the routine keeps it in R13
+            emitRomAddress(lineCounter + SHARED_CALL_WORDS);
+            emit(SHARED_COMPARE_CALL);
+            emitAddress("VM$", command);
+            emit(JUMP);
+            return;
+        }
 
-    public void writePushPop(Parser.commandType commandType, String segment, int offset) {
-        Boolean simpleseg = false;
-        Boolean constant = false;
-        Boolean staticCommand = false;
-        Boolean thisThat = false;
-        Boolean temp = false;
+        emit(COMPARE);
+        emitRomAddress(lineCounter + 1 + jump.size() + COMPARE_TRUE.size());
+        emit(jump);
+        emit(COMPARE_TRUE);
+    }
 
-        StringBuilder address = new StringBuilder();
-        switch (segment) {
-            case "local":
-                address.append("@LCL");
-                simpleseg = true;
-                break;
-            
-            case "argument":
-                address.append("@ARG");
-                simpleseg = true;
-                break;
-            
-            case "this":
-                address.append("@THIS");
-                thisThat = true;
-                break;
-            
-            case "that":
-                address.append("@THAT");
-                thisThat = true;
-                break;
+    private void writeComparisonRoutine(String command, AsmWriter.Template jump) throws IOException {
+        if (!comparisonSites.containsKey(command)) {
+            return;
+        }
 
-            case "pointer":
-                address.append("@POINTER" + offset);
-                break;
+        sink.writeComment("shared", command);
+        sink.writeLabel("VM$", command);
+        emit(SHARED_COMPARE_ENTER);
+        emit(COMPARE);
+        emitRomAddress(lineCounter + 1 + jump.size() + COMPARE_TRUE.size());
+        emit(jump);
+        emit(COMPARE_TRUE);
+        emit(SHARED_COMPARE_RETURN);
+    }
 
-            case "static":
-                address.append("@" + fileName + "." + offset);
-                staticCommand = true;
-                break;
-                
-            case "temp":
-                address.append("@" + (5 + offset));
-                temp = true;
-                break;
-                
-            case "constant":
-                address.append("@" + offset);
-                constant = true;
-                break;
-        
-            default:
-                appendToStringBuilder(stringToWrite, segment + " " + offset + " NOTHING HAPPENED\n");
-                break;
+    // Code size and cycles of eq/gt/lt for both strategies, so a build can pick one
+    public String comparisonStats() {
+        int sites = 0;
+        int routines = 0;
+        for (int count : comparisonSites.values()) {
+            sites += count;
+            routines++;
         }
 
-        if (commandType == Parser.commandType.C_PUSH) {
-            stringToWrite.append("// push " + segment + " " + offset + "\n");
-            
-            if (simpleseg) {
-                appendToStringBuilder(stringToWrite, address + "\n");
-                appendToStringBuilder(stringToWrite, "D=M\n");
-                appendToStringBuilder(stringToWrite, "@" + offset + "\n");
-                appendToStringBuilder(stringToWrite, "D=D+A\n");
-                appendToStringBuilder(stringToWrite, "A=D\n");
-                appendToStringBuilder(stringToWrite, "D=M\n");
-
-            } else if (thisThat) {
-                appendToStringBuilder(stringToWrite, address + "\n");
-                appendToStringBuilder(stringToWrite, "D=M\n");
-                appendToStringBuilder(stringToWrite, "@" + offset + "\n");
-                appendToStringBuilder(stringToWrite, "A=D+A\n");
-                appendToStringBuilder(stringToWrite, "D=M\n");
-
-            } else if (constant) {
-                appendToStringBuilder(stringToWrite, address + "\n");
-                appendToStringBuilder(stringToWrite, "D=A\n");
-
-            } else if (staticCommand) {
-                
-                appendToStringBuilder(stringToWrite, address + "\n");
-                appendToStringBuilder(stringToWrite, "D=M\n");
-
-            } else if (temp) {
-                appendToStringBuilder(stringToWrite, address + "\n");
-                appendToStringBuilder(stringToWrite, "D=M\n");
- 
-            } else if (address.toString().contains("@POINTER")) {
-                if (offset == 0) {
-                    appendToStringBuilder(stringToWrite, "@THIS" + "\n");
-
-                } else if (offset == 1) {
-                    appendToStringBuilder(stringToWrite, "@THAT" + "\n");
-                }
+        int inlineWords = sites * INLINE_COMPARE_WORDS;
+        int sharedWords = sites * SHARED_CALL_WORDS + routines * SHARED_ROUTINE_WORDS;
+
+        // The jump over COMPARE_TRUE saves its cycles when the comparison is false
+        return "comparisons: eq=" + comparisonSites.getOrDefault("eq", 0)
+                + " gt=" + comparisonSites.getOrDefault("gt", 0)
+                + " lt=" + comparisonSites.getOrDefault("lt", 0) + "\n"
+                + "  inline: " + inlineWords + " words, "
+                + (INLINE_COMPARE_WORDS - COMPARE_TRUE.size()) + "-" + INLINE_COMPARE_WORDS + " cycles per comparison\n"
+                + "  shared: " + sharedWords + " words, "
+                + (SHARED_CALL_WORDS + SHARED_ROUTINE_WORDS - COMPARE_TRUE.size()) + "-" + (SHARED_CALL_WORDS + SHARED_ROUTINE_WORDS)
+                + " cycles per comparison" + (sharedComparisons ? " (selected)" : "");
+    }
 
-                appendToStringBuilder(stringToWrite, "D=M\n");
+    public void writePushPop(Parser.commandType commandType, Parser.segmentType segment, int offset) throws IOException {
+        if (commandType == Parser.commandType.C_PUSH) {
+            sink.writeComment("push", segment.text, offset);
+
+            switch (segment) {
+                case LOCAL:
+                case ARGUMENT:
+                case THIS:
+                case THAT:
+                    writeSegmentPush(segment, offset);
+                    break;
+
+                case CONSTANT:
+                    emitAddress(offset);
+                    emit(D_EQ_A);
+                    break;
+
+                case STATIC:
+                    writeStaticAddress(offset);
+                    emit(D_EQ_M);
+                    break;
+
+                case TEMP:
+                    emitAddress(5 + offset);
+                    emit(D_EQ_M);
+                    break;
+
+                case POINTER:
+                    writePointerAddress(offset);
+                    emit(D_EQ_M);
+                    break;
             }
 
             // Push value to stack and SP++
-            appendToStringBuilder(stringToWrite, "@SP\n");
-            appendToStringBuilder(stringToWrite, "A=M\n");
-            appendToStringBuilder(stringToWrite, "M=D\n");
-            appendToStringBuilder(stringToWrite, "@SP\n");
-            appendToStringBuilder(stringToWrite, "M=M+1\n");
-            
+            emit(PUSH_D);
 
         } else if (commandType == Parser.commandType.C_POP) {
-            stringToWrite.append("// pop " + segment + " " + offset + "\n");
-
-            if (simpleseg) {
-                appendToStringBuilder(stringToWrite, address + "\n");
-                appendToStringBuilder(stringToWrite, "D=M\n");
-                appendToStringBuilder(stringToWrite, "@" + offset + "\n"); 
-                appendToStringBuilder(stringToWrite, "D=D+A\n");
-                appendToStringBuilder(stringToWrite, "@R13\n");
-                appendToStringBuilder(stringToWrite, "M=D\n");
-
-                appendToStringBuilder(stringToWrite, "@SP\n");
-                appendToStringBuilder(stringToWrite, "M=M-1\n");
-                appendToStringBuilder(stringToWrite, "A=M\n");
-                appendToStringBuilder(stringToWrite, "D=M\n");
-                appendToStringBuilder(stringToWrite, "@R13\n");
-                appendToStringBuilder(stringToWrite, "A=M\n");
-                appendToStringBuilder(stringToWrite, "M=D\n");
-
-            } else if (thisThat) {
-                appendToStringBuilder(stringToWrite, address + "\n");
-                appendToStringBuilder(stringToWrite, "D=M\n");
-                appendToStringBuilder(stringToWrite, "@" + offset + "\n");
-                appendToStringBuilder(stringToWrite, "D=D+A\n");
-                appendToStringBuilder(stringToWrite, "@R13\n");
-                appendToStringBuilder(stringToWrite, "M=D\n");
-                appendToStringBuilder(stringToWrite, "@SP\n");
-                appendToStringBuilder(stringToWrite, "AM=M-1\n");
-                appendToStringBuilder(stringToWrite, "D=M\n");
-                appendToStringBuilder(stringToWrite, "@R13\n");
-                appendToStringBuilder(stringToWrite, "A=M\n");
-                appendToStringBuilder(stringToWrite, "M=D\n");
-               
-            } else if (temp) {
-                appendToStringBuilder(stringToWrite, "@SP\n");
-                appendToStringBuilder(stringToWrite, "M=M-1\n");
-                appendToStringBuilder(stringToWrite, "A=M\n");
-                appendToStringBuilder(stringToWrite, "D=M\n");
-                
-                appendToStringBuilder(stringToWrite, address + "\n");
-                appendToStringBuilder(stringToWrite, "M=D\n");
-
-            } else if (address.toString().contains("@" + fileName)) {
-                appendToStringBuilder(stringToWrite, "@SP\n");
-                appendToStringBuilder(stringToWrite, "M=M-1\n");
-                appendToStringBuilder(stringToWrite, "A=M\n");
-                appendToStringBuilder(stringToWrite, "D=M\n");
-
-                appendToStringBuilder(stringToWrite, address + "\n");
-                appendToStringBuilder(stringToWrite, "M=D" + "\n");
-                
-            } else if (address.toString().contains("@POINTER")) {
-                appendToStringBuilder(stringToWrite, "@SP\n");
-                appendToStringBuilder(stringToWrite, "M=M-1\n");
-                appendToStringBuilder(stringToWrite, "A=M\n");
-                appendToStringBuilder(stringToWrite, "D=M\n");
-                
-                if (offset == 0) {
-                    appendToStringBuilder(stringToWrite, "@THIS" + "\n");
-
-                } else if (offset == 1) {
-                    appendToStringBuilder(stringToWrite, "@THAT" + "\n");
-                }
-
-                appendToStringBuilder(stringToWrite, "M=D\n");
+            sink.writeComment("pop", segment.text, offset);
+
+            switch (segment) {
+                case LOCAL:
+                case ARGUMENT:
+                case THIS:
+                case THAT:
+                    writeSegmentPop(segment, offset);
+                    break;
+
+                case TEMP:
+                    emit(POP_D);
+                    emitAddress(5 + offset);
+                    emit(M_EQ_D);
+                    break;
+
+                case STATIC:
+                    emit(POP_D);
+                    writeStaticAddress(offset);
+                    emit(M_EQ_D);
+                    break;
+
+                case POINTER:
+                    emit(POP_D);
+                    writePointerAddress(offset);
+                    emit(M_EQ_D);
+                    break;
+
+                case CONSTANT:
+                    throw new IllegalArgumentException("Cannot pop into constant");
             }
+        }
+    }
+
+    // D = segment[offset]
+    private void writeSegmentPush(Parser.segmentType segment, int offset) throws IOException {
+        int start = lineCounter;
+        String form;
+
+        if (offset <= PUSH_CHAIN_LIMIT) {
+            writeSegmentPointer(segment, offset);
+            form = offset == 0 ? "push offset 0" : "push offset 1-" + PUSH_CHAIN_LIMIT;
+        } else {
+            emitAddress(segmentBase(segment));
+            emit(D_EQ_M);
+            emitAddress(offset);
+            emit(A_EQ_D_PLUS_A);
+            form = "push indexed";
+        }
+        emit(D_EQ_M);
+
+        countPushPop(form, genericWords(segment, GENERIC_PUSH_WORDS) - (lineCounter - start));
+    }
+
+    // segment[offset] = pop
+    private void writeSegmentPop(Parser.segmentType segment, int offset) throws IOException {
+        int start = lineCounter;
+        String form;
+
+        if (offset <= POP_CHAIN_LIMIT) {
+            // The value goes in D first, so the address needs no temporary
+            emit(POP_D_AM);
+            writeSegmentPointer(segment, offset);
+            emit(M_EQ_D);
+            form = offset == 0 ? "pop offset 0" : "pop offset 1-" + POP_CHAIN_LIMIT;
+        } else {
+            emitAddress(segmentBase(segment));
+            emit(D_EQ_M);
+            emitAddress(offset);
+            emit(D_EQ_D_PLUS_A);
+            emit(POP_TO_R13_AM);
+            form = "pop indexed";
+        }
+
+        countPushPop(form, genericWords(segment, GENERIC_POP_WORDS) - (lineCounter - start));
+    }
+
+    // A = base + offset, walking up from the base one word at a time
+    private void writeSegmentPointer(Parser.segmentType segment, int offset) throws IOException {
+        emitAddress(segmentBase(segment));
+        if (offset == 0) {
+            emit(A_EQ_M);
+            return;
+        }
+
+        emit(A_EQ_M_PLUS_1);
+        for (int i = 1; i < offset; i++) {
+            emit(A_EQ_A_PLUS_1);
+        }
+    }
+
+    private int genericWords(Parser.segmentType segment, int words) {
+        return segment == Parser.segmentType.LOCAL || segment == Parser.segmentType.ARGUMENT ? words : words - 1;
+    }
+
+    private void countPushPop(String form, int savedWords) {
+        if (isDiscarding()) {
+            return;
+        }
+        int[] counts = pushPopCounts(form);
+        counts[0]++;
+        counts[1] += savedWords;
+    }
+
+    // Sites and saved words of one push/pop form
+    private int[] pushPopCounts(String form) {
+        int[] counts = pushPopSites.get(form);
+        if (counts == null) {
+            counts = new int[2];
+            pushPopSites.put(form, counts);
+        }
+        return counts;
+    }
+
+    // Sites of each segment push/pop form and the words saved against the generic code.
+    // The code has no branches, so words saved are also cycles saved.
+    public String pushPopStats() {
+        StringBuilder stats = new StringBuilder("push/pop:");
+        for (String form : pushPopSites.keySet()) {
+            int[] counts = pushPopSites.get(form);
+            stats.append("\n  ").append(form).append(": ").append(counts[0]).append(" sites, ")
+                    .append(counts[1]).append(" words saved");
+        }
+        return stats.toString();
+    }
+
+    private String segmentBase(Parser.segmentType segment) {
+        switch (segment) {
+            case LOCAL:
+                return "LCL";
+
+            case ARGUMENT:
+                return "ARG";
+
+            case THIS:
+                return "THIS";
+
+            default:
+                return "THAT";
+        }
+    }
+
+    // @fileName.offset
+    private void writeStaticAddress(int offset) throws IOException {
+        emitAddress(staticScope, offset);
+    }
+
+    private void writePointerAddress(int offset) throws IOException {
+        if (offset == 0) {
+            emitAddress("THIS");
 
+        } else if (offset == 1) {
+            emitAddress("THAT");
         }
     }
 }
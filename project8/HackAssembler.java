@@ -0,0 +1,269 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Assembles the CodeWriter's output straight into Hack machine words in memory, without
+ * going through .asm text and the project6 assembler. Labels are resolved and variables
+ * are allocated from address 16 on close, in order of first use like the assembler does,
+ * and the ROM image is written as a .hack file. An AsmWriter can be attached to also
+ * get the .asm listing for debugging.
+ */
+public class HackAssembler implements HackSink {
+    private static final int ROM_SIZE = 32768;
+    private static final HashMap<String, Integer> predefined = new HashMap<>();
+    private static final HashMap<String, Integer> compTable = new HashMap<>();
+    private static final HashMap<String, Integer> destTable = new HashMap<>();
+    private static final HashMap<String, Integer> jumpTable = new HashMap<>();
+
+    private String fileName;
+    private AsmWriter listing;
+    private int[] rom = new int[1024];
+    private int size = 0;
+    private HashMap<String, Integer> labels = new HashMap<>();
+    // ROM words whose address is a symbol, resolved on close
+    private ArrayList<Integer> fixupWords = new ArrayList<>();
+    private ArrayList<String> fixupSymbols = new ArrayList<>();
+    // The first @value that doesn't fit in an A-instruction, -1 if none. A ROM address only
+    // gets there when the program doesn't fit in the ROM, which close reports first.
+    private int badAddress = -1;
+
+    static {
+        for (int i = 0; i < 16; i++) {
+            predefined.put("R" + i, i);
+        }
+        predefined.put("SCREEN", 16384);
+        predefined.put("KBD", 24576);
+        predefined.put("SP", 0);
+        predefined.put("LCL", 1);
+        predefined.put("ARG", 2);
+        predefined.put("THIS", 3);
+        predefined.put("THAT", 4);
+
+        // According to C instruction table, a-bit included
+        String[][] comps = {
+            {"0", "0101010"}, {"1", "0111111"}, {"-1", "0111010"}, {"D", "0001100"},
+            {"A", "0110000"}, {"M", "1110000"}, {"!D", "0001101"}, {"!A", "0110001"},
+            {"!M", "1110001"}, {"-D", "0001111"}, {"-A", "0110011"}, {"-M", "1110011"},
+            {"D+1", "0011111"}, {"A+1", "0110111"}, {"M+1", "1110111"}, {"D-1", "0001110"},
+            {"A-1", "0110010"}, {"M-1", "1110010"}, {"D+A", "0000010"}, {"D+M", "1000010"},
+            {"D-A", "0010011"}, {"D-M", "1010011"}, {"A-D", "0000111"}, {"M-D", "1000111"},
+            {"D&A", "0000000"}, {"D&M", "1000000"}, {"D|A", "0010101"}, {"D|M", "1010101"}
+        };
+        for (String[] pair : comps) {
+            compTable.put(pair[0], Integer.parseInt(pair[1], 2));
+        }
+
+        // Commuted forms that the assembler also accepts
+        compTable.put("M+D", compTable.get("D+M"));
+        compTable.put("A+D", compTable.get("D+A"));
+        compTable.put("M&D", compTable.get("D&M"));
+        compTable.put("M|D", compTable.get("D|M"));
+
+        String[] dests = {"", "M", "D", "MD", "A", "AM", "AD", "AMD"};
+        for (int i = 0; i < dests.length; i++) {
+            destTable.put(dests[i], i);
+        }
+        destTable.put("DM", 3);
+        destTable.put("ADM", 7);
+
+        String[] jumps = {"", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+        for (int i = 0; i < jumps.length; i++) {
+            jumpTable.put(jumps[i], i);
+        }
+    }
+
+    // Encodes one instruction that doesn't need the program's symbol table:
+    // @number, @predefined or dest=comp;jump.
+    public static int encode(String instruction) {
+        if (instruction.charAt(0) == '@') {
+            String symbol = instruction.substring(1);
+            if (predefined.containsKey(symbol)) {
+                return predefined.get(symbol);
+            }
+            return Integer.parseInt(symbol);
+        }
+
+        int equals = instruction.indexOf('=');
+        int semicolon = instruction.indexOf(';');
+        String dest = equals == -1 ? "" : instruction.substring(0, equals);
+        String comp = instruction.substring(equals + 1, semicolon == -1 ? instruction.length() : semicolon);
+        String jump = semicolon == -1 ? "" : instruction.substring(semicolon + 1);
+
+        if (!compTable.containsKey(comp) || !destTable.containsKey(dest) || !jumpTable.containsKey(jump)) {
+            throw new IllegalArgumentException("Cannot encode instruction: " + instruction);
+        }
+        return 0b111 << 13 | compTable.get(comp) << 6 | destTable.get(dest) << 3 | jumpTable.get(jump);
+    }
+
+    public HackAssembler(String fileName, AsmWriter listing) {
+        this.fileName = fileName;
+        this.listing = listing;
+    }
+
+    @Override
+    public void write(AsmWriter.Template template) throws IOException {
+        for (int word : template.words()) {
+            add(word);
+        }
+        if (listing != null) {
+            listing.write(template);
+        }
+    }
+
+    @Override
+    public void writeAddress(int value) throws IOException {
+        if ((value < 0 || value >= ROM_SIZE) && badAddress == -1) {
+            badAddress = value;
+        }
+        add(value);
+        if (listing != null) {
+            listing.writeAddress(value);
+        }
+    }
+
+    @Override
+    public void writeAddress(String symbol) throws IOException {
+        addSymbol(symbol);
+        if (listing != null) {
+            listing.writeAddress(symbol);
+        }
+    }
+
+    @Override
+    public void writeAddress(String prefix, String name) throws IOException {
+        addSymbol(prefix + name);
+        if (listing != null) {
+            listing.writeAddress(prefix, name);
+        }
+    }
+
+    @Override
+    public void writeAddress(String prefix, int number) throws IOException {
+        addSymbol(prefix + number);
+        if (listing != null) {
+            listing.writeAddress(prefix, number);
+        }
+    }
+
+    @Override
+    public void writeLabel(String symbol) throws IOException {
+        labels.put(symbol, size);
+        if (listing != null) {
+            listing.writeLabel(symbol);
+        }
+    }
+
+    @Override
+    public void writeLabel(String prefix, String name) throws IOException {
+        labels.put(prefix + name, size);
+        if (listing != null) {
+            listing.writeLabel(prefix, name);
+        }
+    }
+
+    @Override
+    public void writeLabel(String prefix, int number) throws IOException {
+        labels.put(prefix + number, size);
+        if (listing != null) {
+            listing.writeLabel(prefix, number);
+        }
+    }
+
+    @Override
+    public void writeComment(String text) throws IOException {
+        if (listing != null) {
+            listing.writeComment(text);
+        }
+    }
+
+    @Override
+    public void writeComment(String command, String arg) throws IOException {
+        if (listing != null) {
+            listing.writeComment(command, arg);
+        }
+    }
+
+    @Override
+    public void writeComment(String command, String arg, int number) throws IOException {
+        if (listing != null) {
+            listing.writeComment(command, arg, number);
+        }
+    }
+
+    // Resolves the symbols and writes the ROM image, one 16-bit binary word per line.
+    // A program that doesn't fit in the ROM is an error, and no image is written for it, as its
+    // labels past the ROM would be words with bit 15 set, C-instructions instead of @labels.
+    @Override
+    public void close() throws IOException {
+        if (listing != null) {
+            listing.close();
+        }
+        if (size > ROM_SIZE) {
+            throw new IOException("Program takes " + size + " words, ROM holds " + ROM_SIZE + ": " + fileName + " not written");
+        }
+        if (badAddress != -1) {
+            throw new IllegalArgumentException("Address out of range: " + badAddress + ": " + fileName + " not written");
+        }
+
+        HashMap<String, Integer> variables = new HashMap<>();
+        int nextVariable = 16;
+        for (int i = 0; i < fixupWords.size(); i++) {
+            String symbol = fixupSymbols.get(i);
+            Integer address = labels.get(symbol);
+            if (address == null) {
+                address = predefined.get(symbol);
+            }
+            if (address == null) {
+                address = variables.get(symbol);
+            }
+            if (address == null) {
+                address = nextVariable++;
+                variables.put(symbol, address);
+            }
+            rom[fixupWords.get(i)] = address;
+        }
+
+        try (FileOutputStream out = new FileOutputStream(fileName)) {
+            byte[] buffer = new byte[17 * 4096];
+            int position = 0;
+            for (int i = 0; i < size; i++) {
+                for (int bit = 0; bit < 16; bit++) {
+                    buffer[position++] = (byte) ((rom[i] >> (15 - bit) & 1) == 1 ? '1' : '0');
+                }
+                buffer[position++] = '\n';
+                if (position == buffer.length) {
+                    out.write(buffer, 0, position);
+                    position = 0;
+                }
+            }
+            out.write(buffer, 0, position);
+        }
+    }
+
+    // Number of words assembled so far
+    public int size() {
+        return size;
+    }
+
+    private void add(int word) {
+        if (size == rom.length) {
+            int[] bigger = new int[rom.length * 2];
+            System.arraycopy(rom, 0, bigger, 0, size);
+            rom = bigger;
+        }
+        rom[size++] = word;
+    }
+
+    private void addSymbol(String symbol) {
+        Integer address = predefined.get(symbol);
+        if (address != null) {
+            add(address);
+            return;
+        }
+        fixupWords.add(size);
+        fixupSymbols.add(symbol);
+        add(0);
+    }
+}
@@ -0,0 +1,41 @@
+import java.io.IOException;
+
+/*
+ * Receives the instructions generated by the CodeWriter.
+ * AsmWriter turns them into .asm text, HackAssembler into Hack machine words.
+ * A symbol can be passed in two parts, a scope prefix and a name or number
+ * (e.g. "Foo.bar$" + "LOOP", "Foo." + 3), so text output never has to build it.
+ */
+public interface HackSink {
+
+    // A fixed sequence of instructions
+    void write(AsmWriter.Template template) throws IOException;
+
+    // @value
+    void writeAddress(int value) throws IOException;
+
+    // @symbol
+    void writeAddress(String symbol) throws IOException;
+
+    // @prefixname
+    void writeAddress(String prefix, String name) throws IOException;
+
+    // @prefixnumber
+    void writeAddress(String prefix, int number) throws IOException;
+
+    // (symbol), doesn't take a ROM word
+    void writeLabel(String symbol) throws IOException;
+
+    void writeLabel(String prefix, String name) throws IOException;
+
+    void writeLabel(String prefix, int number) throws IOException;
+
+    // Comments only show up in text output
+    void writeComment(String text) throws IOException;
+
+    void writeComment(String command, String arg) throws IOException;
+
+    void writeComment(String command, String arg, int number) throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,179 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/*
+ * Finds the functions whose body can be copied into the caller instead of called.
+ * A function qualifies when it is a leaf with straight-line code: only push, pop and
+ * arithmetic, a single return at the end, and it never pops below its own frame.
+ * Of those, it inlines the ones up to a size threshold and the ones named in a profile.
+ */
+public class Inliner {
+    private int maxSize;
+    private HashSet<String> profiled = new HashSet<>();
+    private HashMap<String, Function> functions = new HashMap<>();
+    private String facts;
+
+    // Body of an inlinable function, as parsed from the .vm file
+    public static class Function {
+        public final String name;
+        public final String fileName;
+        public final int nVars;
+        public ArrayList<Parser.opcode> opcodes = new ArrayList<>();
+        public ArrayList<Parser.segmentType> segments = new ArrayList<>();
+        public ArrayList<Integer> numbers = new ArrayList<>();
+        // Highest argument index used, -1 if none
+        public int maxArgument = -1;
+        // Sets pointer 0 / pointer 1, which the caller expects back
+        public boolean writesThis = false;
+        public boolean writesThat = false;
+
+        private boolean inlinable = true;
+        private boolean returned = false;
+        private int depth = 0;
+
+        private Function(String name, int nVars) {
+            this.name = name;
+            this.fileName = name.substring(0, name.indexOf('.'));
+            this.nVars = nVars;
+        }
+
+        // Number of commands, without the return
+        public int size() {
+            return opcodes.size();
+        }
+
+        private void add(Parser parser) {
+            Parser.opcode opcode = parser.getOpcode();
+            if (!inlinable) {
+                return;
+            }
+            if (returned) {
+                // Code after the return means there are branches around it
+                inlinable = false;
+                return;
+            }
+
+            switch (opcode.type) {
+                case C_PUSH:
+                    depth++;
+                    if (parser.getSegment() == Parser.segmentType.ARGUMENT) {
+                        maxArgument = Math.max(maxArgument, parser.arg2());
+                    }
+                    break;
+
+                case C_POP:
+                    depth--;
+                    if (parser.getSegment() == Parser.segmentType.ARGUMENT) {
+                        maxArgument = Math.max(maxArgument, parser.arg2());
+                    } else if (parser.getSegment() == Parser.segmentType.POINTER) {
+                        writesThis |= parser.arg2() == 0;
+                        writesThat |= parser.arg2() == 1;
+                    }
+                    break;
+
+                case C_ARITHMETIC:
+                    if (opcode != Parser.opcode.NEG && opcode != Parser.opcode.NOT) {
+                        depth--;
+                    }
+                    break;
+
+                case C_RETURN:
+                    returned = true;
+                    inlinable = depth >= 1;
+                    return;
+
+                default:
+                    inlinable = false;
+                    return;
+            }
+
+            if (depth < 0) {
+                inlinable = false;
+                return;
+            }
+            opcodes.add(opcode);
+            segments.add(parser.getSegment());
+            numbers.add(parser.arg2());
+        }
+    }
+
+    // maxSize: largest body, in VM commands, inlined without a profile entry
+    public Inliner(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    // One function name per line, as the first word, e.g. "Fish.getX 120000"
+    public void readProfile(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("//")) {
+                    continue;
+                }
+                profiled.add(line.split("\\s+")[0]);
+            }
+        }
+    }
+
+    public void addFile(File file) throws IOException {
+        Parser parser = new Parser(file);
+        Function current = null;
+
+        while (parser.hasMoreLines()) {
+            parser.advance();
+            if (parser.getCommandType() == Parser.commandType.C_FUNCTION) {
+                current = new Function(parser.arg1(), parser.arg2());
+                functions.put(current.name, current);
+            } else if (current != null) {
+                current.add(parser);
+            }
+        }
+    }
+
+    // True if call name nArgs can be replaced by the function's body
+    public boolean canInline(String name, int nArgs) {
+        Function function = functions.get(name);
+        if (function == null || !function.inlinable || !function.returned) {
+            return false;
+        }
+        if (function.maxArgument >= nArgs) {
+            return false;
+        }
+        return function.size() <= maxSize || profiled.contains(name);
+    }
+
+    // The bodies that may be inlined, for the cache: a file that calls one depends on it
+    public String facts() {
+        if (facts == null) {
+            ArrayList<String> names = new ArrayList<>(functions.keySet());
+            Collections.sort(names);
+
+            StringBuilder text = new StringBuilder();
+            for (String name : names) {
+                Function function = functions.get(name);
+                if (!canInline(name, Integer.MAX_VALUE)) {
+                    continue;
+                }
+                text.append(name).append(' ').append(function.nVars);
+                for (int i = 0; i < function.size(); i++) {
+                    text.append(' ').append(function.opcodes.get(i)).append(' ')
+                            .append(function.segments.get(i)).append(' ').append(function.numbers.get(i));
+                }
+                text.append('\n');
+            }
+            facts = text.toString();
+        }
+        return facts;
+    }
+
+    public Function get(String name) {
+        return functions.get(name);
+    }
+}
@@ -4,8 +4,78 @@ import java.io.IOException;
 public class Main {
     private static CodeWriter codeWriter;
     private static int counter = 0;
+    private static boolean sharedComparisons = false;
+    private static boolean printStats = false;
+    private static boolean binary = false;
+    private static boolean listing = false;
+    private static boolean keepUnused = false;
+    private static boolean tailCalls = false;
+    // Whole-program call graph, only built for a directory
+    private static CallGraph callGraph;
+    // Function being translated, for tail calls
+    private static String currentFunction;
+    // Inlining is off unless a size or a profile is given
+    private static Inliner inliner;
+    private static int inlineSize = 0;
+    private static File inlineProfile;
+    private static boolean useCache = false;
+    private static TranslationCache cache;
 
     public static void main(String[] args) throws IOException {
+        reset();
+
+        // Options come after the input path
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--shared-compare":
+                    sharedComparisons = true;
+                    break;
+
+                case "--stats":
+                    printStats = true;
+                    break;
+
+                // Assemble straight into a .hack file
+                case "--hack":
+                    binary = true;
+                    break;
+
+                // With --hack, also write the .asm listing
+                case "--asm":
+                    listing = true;
+                    break;
+
+                // Translate functions that are never called too
+                case "--keep-unused":
+                    keepUnused = true;
+                    break;
+
+                // Reuse the caller's frame for "call f n" followed by "return"
+                case "--tco":
+                    tailCalls = true;
+                    break;
+
+                // Reuse the translation of files that didn't change, kept in .vmcache
+                case "--cache":
+                    useCache = true;
+                    break;
+
+                // Inline small functions, up to this many VM commands
+                case "--inline":
+                    inlineSize = Integer.parseInt(args[++i]);
+                    break;
+
+                // Inline the functions listed in this file, whatever their size
+                case "--inline-profile":
+                    inlineProfile = new File(args[++i]);
+                    break;
+
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    break;
+            }
+        }
+
         File input = new File(args[0]);
         if (input.isDirectory()) {
             File[] inputListFiles = input.listFiles();
@@ -14,30 +84,163 @@ public class Main {
                     counter++;
                 }
             }
-            codeWriter = new CodeWriter(args[0], false);
+            if (useCache) {
+                cache = new TranslationCache(new File(input, ".vmcache"));
+            }
+            findInlinable(inputListFiles);
+            buildCallGraph(inputListFiles);
+            codeWriter = new CodeWriter(args[0], false, binary, listing);
+            codeWriter.setSharedComparisons(sharedComparisons);
             
             for (File file : input.listFiles()) {
                 if (!file.getPath().endsWith(".vm")) {
                     continue;
                 }
                 counter--;
-                Parser parser = new Parser(file);
                 if (counter > 0) {
-                    Translate(parser, codeWriter, false);   
+                    translateFile(file, false);
                 } else {
-                    Translate(parser, codeWriter, true);
+                    translateFile(file, true);
                 }    
             }
         
         } else {
-            Parser parser = new Parser(input);
-            codeWriter = new CodeWriter(args[0], true);
-            Translate(parser, codeWriter, true);
+            findInlinable(new File[] {input});
+            codeWriter = new CodeWriter(args[0], true, binary, listing);
+            codeWriter.setSharedComparisons(sharedComparisons);
+            if (useCache) {
+                cache = new TranslationCache(new File(input.getAbsoluteFile().getParentFile(), ".vmcache"));
+            }
+            translateFile(input, true);
+        }
+
+        if (printStats) {
+            System.out.println(codeWriter.comparisonStats());
+            System.out.println(codeWriter.pushPopStats());
+            if (inliner != null) {
+                System.out.println(codeWriter.inlineStats());
+            }
+            if (tailCalls) {
+                System.out.println(codeWriter.tailCallStats());
+            }
+            if (cache != null) {
+                System.out.println(cache.stats());
+            }
+            if (callGraph != null && callGraph.isResolved()) {
+                System.out.println("reachable: " + callGraph.reachableCount() + " of " + callGraph.size()
+                        + " functions, " + codeWriter.discardedWords() + " words saved");
+                for (String function : callGraph.reachable()) {
+                    System.out.println("  " + function);
+                }
+            }
+        }
+    }
+
+    // The toolchain server runs main again in the same JVM
+    private static void reset() {
+        codeWriter = null;
+        counter = 0;
+        sharedComparisons = false;
+        printStats = false;
+        binary = false;
+        listing = false;
+        keepUnused = false;
+        tailCalls = false;
+        callGraph = null;
+        currentFunction = null;
+        inliner = null;
+        inlineSize = 0;
+        inlineProfile = null;
+        useCache = false;
+        cache = null;
+    }
+
+    private static void findInlinable(File[] files) throws IOException {
+        if (inlineSize == 0 && inlineProfile == null) {
+            return;
+        }
+
+        inliner = new Inliner(inlineSize);
+        if (inlineProfile != null) {
+            inliner.readProfile(inlineProfile);
+        }
+        for (File file : files) {
+            if (file.getPath().endsWith(".vm")) {
+                inliner.addFile(file);
+            }
+        }
+    }
+
+    // Whole-program pass: only functions reachable from Sys.init get translated
+    private static void buildCallGraph(File[] files) throws IOException {
+        callGraph = new CallGraph();
+        for (File file : files) {
+            if (file.getPath().endsWith(".vm")) {
+                if (cache != null) {
+                    callGraph.addFile(file, cache.summary(file), inliner);
+                } else {
+                    callGraph.addFile(file, inliner);
+                }
+            }
+        }
+        // The bootstrap code
+        callGraph.addCall("Sys.init", 0);
+
+        // Without an entry point nothing can be dropped safely
+        if (!keepUnused && callGraph.isDefined("Sys.init")) {
+            callGraph.resolve("Sys.init");
+        }
+    }
+
+    // The caller's frame can be reused when the callee's arguments fit where the caller's are,
+    // which needs every call site of the caller, so only a whole directory qualifies
+    private static boolean canTailCall(Parser parser, int nArgs) {
+        return tailCalls && callGraph != null && currentFunction != null
+                && callGraph.minArgs(currentFunction) >= nArgs
+                && parser.nextIs(Parser.opcode.RETURN);
+    }
+
+
+    // Translates one file, or replays it from the cache if it was translated the same way before
+    private static void translateFile(File file, boolean lastFile) throws IOException {
+        if (cache == null) {
+            Translate(new Parser(file), codeWriter, lastFile);
+            return;
+        }
+
+        String key = cache.key(file, cacheContext(file));
+        TranslationCache.Entry entry = cache.load(key);
+        if (entry != null) {
+            codeWriter.replay(entry);
+        } else {
+            codeWriter.startRecording();
+            translateCommands(new Parser(file), codeWriter);
+            cache.store(key, codeWriter.stopRecording());
         }
+        codeWriter.close(lastFile);
     }
 
+    // Everything besides the file's own text that decides how it is translated
+    private static String cacheContext(File file) {
+        StringBuilder context = new StringBuilder();
+        context.append(sharedComparisons).append(' ').append(tailCalls).append(' ').append(binary).append(' ')
+                .append(codeWriter.scope()).append('\n');
+        if (callGraph != null) {
+            context.append(callGraph.facts(file));
+        }
+        if (inliner != null) {
+            context.append(inliner.facts());
+        }
+        return context.toString();
+    }
 
     public static void Translate(Parser parser, CodeWriter codeWriter, boolean lastFile) throws IOException{
+        translateCommands(parser, codeWriter);
+        codeWriter.close(lastFile);
+    }
+
+    private static void translateCommands(Parser parser, CodeWriter codeWriter) throws IOException {
+        currentFunction = null;
 
         while (parser.hasMoreLines()) {
 
@@ -47,13 +250,12 @@ public class Main {
             
             switch (commandType) {
                 case Parser.commandType.C_ARITHMETIC:
-                    command = parser.arg1();
-                    codeWriter.writeArithmetic(command);
+                    codeWriter.writeArithmetic(parser.getOpcode());
                     break;
             
                 case Parser.commandType.C_PUSH:
                 case  Parser.commandType.C_POP:
-                    codeWriter.writePushPop(parser.getCommandType(), parser.arg1(), parser.arg2());
+                    codeWriter.writePushPop(commandType, parser.getSegment(), parser.arg2());
                     break;
             
                 case Parser.commandType.C_LABEL:
@@ -73,6 +275,8 @@ public class Main {
             
                 case Parser.commandType.C_FUNCTION:
                     command = parser.arg1();
+                    codeWriter.setDiscarding(callGraph != null && !callGraph.isReachable(command));
+                    currentFunction = command;
                     int nVars = parser.arg2();
                     codeWriter.writeFunction(command, nVars);
                     break;
@@ -80,7 +284,15 @@ public class Main {
                 case Parser.commandType.C_CALL:
                     command = parser.arg1();
                     int nArgs = parser.arg2();
-                    codeWriter.writeCall(command, nArgs);
+                    if (inliner != null && inliner.canInline(command, nArgs)) {
+                        codeWriter.writeInlineCall(command, nArgs, inliner.get(command));
+                    } else if (canTailCall(parser, nArgs)) {
+                        codeWriter.writeTailCall(command, nArgs, callGraph.alwaysCalledWith(currentFunction, nArgs));
+                        // The return is never reached
+                        parser.advance();
+                    } else {
+                        codeWriter.writeCall(command, nArgs);
+                    }
                     break;
 
                 case Parser.commandType.C_RETURN:
@@ -92,7 +304,6 @@ public class Main {
             }
 
         }
-        codeWriter.close(lastFile);
     }
 
 }
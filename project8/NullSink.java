@@ -0,0 +1,56 @@
+import java.io.IOException;
+
+/*
+ * Throws away everything written to it.
+ * The CodeWriter generates dropped functions into it to count the words they would take.
+ */
+public class NullSink implements HackSink {
+
+    @Override
+    public void write(AsmWriter.Template template) throws IOException {
+    }
+
+    @Override
+    public void writeAddress(int value) throws IOException {
+    }
+
+    @Override
+    public void writeAddress(String symbol) throws IOException {
+    }
+
+    @Override
+    public void writeAddress(String prefix, String name) throws IOException {
+    }
+
+    @Override
+    public void writeAddress(String prefix, int number) throws IOException {
+    }
+
+    @Override
+    public void writeLabel(String symbol) throws IOException {
+    }
+
+    @Override
+    public void writeLabel(String prefix, String name) throws IOException {
+    }
+
+    @Override
+    public void writeLabel(String prefix, int number) throws IOException {
+    }
+
+    @Override
+    public void writeComment(String text) throws IOException {
+    }
+
+    @Override
+    public void writeComment(String command, String arg) throws IOException {
+    }
+
+    @Override
+    public void writeComment(String command, String arg, int number) throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
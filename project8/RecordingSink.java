@@ -0,0 +1,275 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Passes everything on to another sink and also records it, so the output of one
+ * .vm file can be cached and replayed later by CodeWriter.replay.
+ * The recording is relocatable: ROM addresses are kept relative to the file's first
+ * instruction and return labels relative to the callee's count when the file started.
+ *
+ * For .asm output the file is recorded as finished text, cut wherever one of those
+ * numbers goes, so a replay mostly copies bytes. Otherwise every call is recorded as an
+ * event. Each distinct string is stored once, events refer to it by index.
+ */
+public class RecordingSink implements HackSink {
+    // Event kinds
+    static final byte TEMPLATE = 0;
+    static final byte ADDRESS = 1;
+    static final byte ADDRESS_SYMBOL = 2;
+    static final byte ADDRESS_PREFIX_NAME = 3;
+    static final byte ADDRESS_PREFIX_NUMBER = 4;
+    static final byte LABEL = 5;
+    static final byte LABEL_PREFIX_NAME = 6;
+    static final byte LABEL_PREFIX_NUMBER = 7;
+    static final byte COMMENT = 8;
+    static final byte COMMENT_ARG = 9;
+    static final byte COMMENT_ARG_NUMBER = 10;
+    // The ones below are recorded in text mode too
+    static final byte ROM_ADDRESS = 11;
+    static final byte RETURN_ADDRESS = 12;
+    static final byte RETURN_LABEL = 13;
+    static final byte SCOPE = 14;
+
+    private HackSink target;
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private DataOutputStream out = new DataOutputStream(bytes);
+    private HashMap<String, Integer> stringIndex = new HashMap<>();
+    private ArrayList<String> strings = new ArrayList<>();
+
+    // Text mode only: the text so far and where each piece ends
+    private ByteArrayOutputStream textBytes;
+    private AsmWriter text;
+    private ArrayList<Integer> pieceEnds;
+
+    public RecordingSink(HackSink target, boolean textMode) {
+        this.target = target;
+        if (textMode) {
+            textBytes = new ByteArrayOutputStream();
+            text = new AsmWriter(textBytes);
+            pieceEnds = new ArrayList<>();
+        }
+    }
+
+    public HackSink target() {
+        return target;
+    }
+
+    // The string table followed by the events
+    public byte[] events() throws IOException {
+        ByteArrayOutputStream all = new ByteArrayOutputStream(bytes.size() + strings.size() * 16);
+        DataOutputStream table = new DataOutputStream(all);
+        table.writeInt(strings.size());
+        for (String string : strings) {
+            table.writeUTF(string);
+        }
+        table.flush();
+        bytes.writeTo(all);
+        return all.toByteArray();
+    }
+
+    // Text mode: the .asm text, null otherwise
+    public byte[] text() {
+        return textBytes == null ? null : textBytes.toByteArray();
+    }
+
+    // Text mode: where each piece of text ends, one piece before each event and one after the last
+    public int[] pieceEnds() {
+        if (pieceEnds == null) {
+            return null;
+        }
+        int[] ends = new int[pieceEnds.size()];
+        for (int i = 0; i < ends.length; i++) {
+            ends[i] = pieceEnds.get(i);
+        }
+        return ends;
+    }
+
+    @Override
+    public void write(AsmWriter.Template template) throws IOException {
+        if (text != null) {
+            text.write(template);
+        } else {
+            out.writeByte(TEMPLATE);
+            out.writeShort(template.id());
+        }
+        target.write(template);
+    }
+
+    @Override
+    public void writeAddress(int value) throws IOException {
+        if (text != null) {
+            text.writeAddress(value);
+        } else {
+            out.writeByte(ADDRESS);
+            out.writeShort(value);
+        }
+        target.writeAddress(value);
+    }
+
+    @Override
+    public void writeAddress(String symbol) throws IOException {
+        if (text != null) {
+            text.writeAddress(symbol);
+        } else {
+            out.writeByte(ADDRESS_SYMBOL);
+            writeString(symbol);
+        }
+        target.writeAddress(symbol);
+    }
+
+    @Override
+    public void writeAddress(String prefix, String name) throws IOException {
+        if (text != null) {
+            text.writeAddress(prefix, name);
+        } else {
+            out.writeByte(ADDRESS_PREFIX_NAME);
+            writeString(prefix);
+            writeString(name);
+        }
+        target.writeAddress(prefix, name);
+    }
+
+    @Override
+    public void writeAddress(String prefix, int number) throws IOException {
+        if (text != null) {
+            text.writeAddress(prefix, number);
+        } else {
+            out.writeByte(ADDRESS_PREFIX_NUMBER);
+            writeString(prefix);
+            out.writeInt(number);
+        }
+        target.writeAddress(prefix, number);
+    }
+
+    @Override
+    public void writeLabel(String symbol) throws IOException {
+        if (text != null) {
+            text.writeLabel(symbol);
+        } else {
+            out.writeByte(LABEL);
+            writeString(symbol);
+        }
+        target.writeLabel(symbol);
+    }
+
+    @Override
+    public void writeLabel(String prefix, String name) throws IOException {
+        if (text != null) {
+            text.writeLabel(prefix, name);
+        } else {
+            out.writeByte(LABEL_PREFIX_NAME);
+            writeString(prefix);
+            writeString(name);
+        }
+        target.writeLabel(prefix, name);
+    }
+
+    @Override
+    public void writeLabel(String prefix, int number) throws IOException {
+        if (text != null) {
+            text.writeLabel(prefix, number);
+        } else {
+            out.writeByte(LABEL_PREFIX_NUMBER);
+            writeString(prefix);
+            out.writeInt(number);
+        }
+        target.writeLabel(prefix, number);
+    }
+
+    @Override
+    public void writeComment(String comment) throws IOException {
+        if (text != null) {
+            text.writeComment(comment);
+        } else {
+            out.writeByte(COMMENT);
+            writeString(comment);
+        }
+        target.writeComment(comment);
+    }
+
+    @Override
+    public void writeComment(String command, String arg) throws IOException {
+        if (text != null) {
+            text.writeComment(command, arg);
+        } else {
+            out.writeByte(COMMENT_ARG);
+            writeString(command);
+            writeString(arg);
+        }
+        target.writeComment(command, arg);
+    }
+
+    @Override
+    public void writeComment(String command, String arg, int number) throws IOException {
+        if (text != null) {
+            text.writeComment(command, arg, number);
+        } else {
+            out.writeByte(COMMENT_ARG_NUMBER);
+            writeString(command);
+            writeString(arg);
+            out.writeInt(number);
+        }
+        target.writeComment(command, arg, number);
+    }
+
+    // @value where value is a ROM address, firstLine is where the recording started
+    public void writeRomAddress(int value, int firstLine) throws IOException {
+        endPiece();
+        out.writeByte(ROM_ADDRESS);
+        out.writeInt(value - firstLine);
+        target.writeAddress(value);
+    }
+
+    // @callee$ret.count, firstCount is the callee's count when the recording started
+    public void writeReturnAddress(String callee, int count, int firstCount) throws IOException {
+        endPiece();
+        out.writeByte(RETURN_ADDRESS);
+        writeString(callee);
+        out.writeInt(count - firstCount);
+        target.writeAddress(callee + "$ret.", count);
+    }
+
+    // (callee$ret.count)
+    public void writeReturnLabel(String callee, int count, int firstCount) throws IOException {
+        endPiece();
+        out.writeByte(RETURN_LABEL);
+        writeString(callee);
+        out.writeInt(count - firstCount);
+        target.writeLabel(callee + "$ret.", count);
+    }
+
+    // The CodeWriter's file and function scope at the end of the recording
+    public void writeScope(String fileName, String functionName) throws IOException {
+        endPiece();
+        out.writeByte(SCOPE);
+        writeString(fileName);
+        writeString(functionName);
+    }
+
+    // Recording ends with the file, the target stays open
+    @Override
+    public void close() throws IOException {
+        endPiece();
+        out.flush();
+    }
+
+    private void endPiece() throws IOException {
+        if (text != null) {
+            text.flush();
+            pieceEnds.add(textBytes.size());
+        }
+    }
+
+    private void writeString(String string) throws IOException {
+        Integer index = stringIndex.get(string);
+        if (index == null) {
+            index = strings.size();
+            stringIndex.put(string, index);
+            strings.add(string);
+        }
+        out.writeInt(index);
+    }
+}
@@ -0,0 +1,207 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/*
+ * On-disk cache of translated .vm files, kept in a .vmcache directory.
+ * An entry is the file's recorded output (see RecordingSink) and the stats it added.
+ * It is keyed by a hash of the file's contents, the translator's own classes, and
+ * whatever else the translation depended on (options, facts about the other files),
+ * so a changed input or a rebuilt translator never reuses a stale entry.
+ */
+public class TranslationCache {
+    private static final int FORMAT = 2;
+    // Classes whose code decides what gets written for a file
+    private static final String[] TRANSLATOR_CLASSES = {
+        "Main", "CodeWriter", "Parser", "AsmWriter", "RecordingSink", "CallGraph", "Inliner"
+    };
+
+    private File directory;
+    private byte[] translatorDigest;
+    // Hash of each input file's contents, read once per run
+    private HashMap<String, byte[]> contentDigests = new HashMap<>();
+    private int hits = 0;
+    private int misses = 0;
+
+    // Recorded output of one file, see RecordingSink. text and pieceEnds are null unless recorded as text.
+    public static class Entry {
+        public final byte[] events;
+        public final byte[] text;
+        public final int[] pieceEnds;
+        // ROM words the file takes
+        public final int words;
+        public final HashMap<String, Integer> counters;
+
+        public Entry(byte[] events, byte[] text, int[] pieceEnds, int words, HashMap<String, Integer> counters) {
+            this.events = events;
+            this.text = text;
+            this.pieceEnds = pieceEnds;
+            this.words = words;
+            this.counters = counters;
+        }
+    }
+
+    public TranslationCache(File directory) throws IOException {
+        this.directory = directory;
+        directory.mkdirs();
+
+        MessageDigest digest = newDigest();
+        for (String name : TRANSLATOR_CLASSES) {
+            try (InputStream in = TranslationCache.class.getResourceAsStream(name + ".class")) {
+                if (in != null) {
+                    digest.update(in.readAllBytes());
+                }
+            }
+        }
+        translatorDigest = digest.digest();
+    }
+
+    // context: everything besides the file itself that its translation depends on
+    public String key(File file, String context) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(translatorDigest);
+        digest.update(context.getBytes(StandardCharsets.UTF_8));
+        digest.update(contentDigest(file));
+        return hex(digest.digest());
+    }
+
+    // The file's call graph summary, scanned and stored on a miss.
+    // It depends on nothing but the file, so it is keyed by its contents alone.
+    public CallGraph.FileSummary summary(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(translatorDigest);
+        digest.update(contentDigest(file));
+        File entry = new File(directory, "calls-" + hex(digest.digest()));
+
+        if (entry.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+                if (in.readInt() == FORMAT) {
+                    return CallGraph.FileSummary.read(in);
+                }
+            } catch (IOException e) {
+                // Scanned again below
+            }
+        }
+
+        CallGraph.FileSummary summary = CallGraph.FileSummary.scan(file);
+        File temp = new File(directory, entry.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(FORMAT);
+            summary.write(out);
+        }
+        Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return summary;
+    }
+
+    // The cached entry, or null on a miss. A broken entry counts as a miss.
+    public Entry load(String key) {
+        File file = new File(directory, key);
+        if (!file.exists()) {
+            misses++;
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT) {
+                misses++;
+                return null;
+            }
+
+            HashMap<String, Integer> counters = new LinkedHashMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                counters.put(in.readUTF(), in.readInt());
+            }
+            int words = in.readInt();
+            byte[] events = new byte[in.readInt()];
+            in.readFully(events);
+
+            byte[] text = null;
+            int[] pieceEnds = null;
+            if (in.readBoolean()) {
+                text = new byte[in.readInt()];
+                in.readFully(text);
+                pieceEnds = new int[in.readInt()];
+                for (int i = 0; i < pieceEnds.length; i++) {
+                    pieceEnds[i] = in.readInt();
+                }
+            }
+
+            hits++;
+            return new Entry(events, text, pieceEnds, words, counters);
+
+        } catch (IOException e) {
+            misses++;
+            return null;
+        }
+    }
+
+    public void store(String key, Entry entry) throws IOException {
+        // Written aside and moved in place, so a crash never leaves half an entry
+        File temp = new File(directory, key + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(FORMAT);
+            out.writeInt(entry.counters.size());
+            for (String counter : entry.counters.keySet()) {
+                out.writeUTF(counter);
+                out.writeInt(entry.counters.get(counter));
+            }
+            out.writeInt(entry.words);
+            out.writeInt(entry.events.length);
+            out.write(entry.events);
+
+            out.writeBoolean(entry.text != null);
+            if (entry.text != null) {
+                out.writeInt(entry.text.length);
+                out.write(entry.text);
+                out.writeInt(entry.pieceEnds.length);
+                for (int end : entry.pieceEnds) {
+                    out.writeInt(end);
+                }
+            }
+        }
+        Files.move(temp.toPath(), new File(directory, key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public String stats() {
+        return "cache: " + hits + " hits, " + misses + " misses";
+    }
+
+    private byte[] contentDigest(File file) throws IOException {
+        byte[] digest = contentDigests.get(file.getPath());
+        if (digest == null) {
+            digest = newDigest().digest(Files.readAllBytes(file.toPath()));
+            contentDigests.put(file.getPath(), digest);
+        }
+        return digest;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder text = new StringBuilder();
+        for (byte b : bytes) {
+            text.append(String.format("%02x", b));
+        }
+        return text.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
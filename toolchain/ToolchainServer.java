@@ -0,0 +1,221 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/*
+ * Keeps the Assembler, VMtranslator and JackCompiler loaded in one JVM, so a build step
+ * doesn't pay for JVM startup and runs on code the JIT has already compiled.
+ * Every project has its own class loader, since they all have a Main in the default package.
+ * A loader is replaced when the project's classes are recompiled.
+ *
+ * The wrapper scripts are the clients. They connect to 127.0.0.1:PORT and send, one per line:
+ *   tool, working directory, number of arguments, the arguments
+ * where the tool is one of the ids in TOOLS, and get back the tool's output line by line, "1" + line for stdout and "2" + line for
+ * stderr, followed by "x" + exit code. A request of just "stop" shuts the server down.
+ *
+ * Runs one tool at a time, since they print to System.out and keep state in statics.
+ *
+ * Clients only name a tool, and the server runs its own copy of it, so a local process can't
+ * make it load other classes. The project directories are found from the server's working
+ * directory, which is toolchain/ (see the ToolchainServer script).
+ */
+public class ToolchainServer {
+    private static final int DEFAULT_PORT = 7207;
+
+    // The tools clients can run: their project directory, relative to toolchain/, and main class
+    private static final String[][] TOOLS = {
+        {"assembler", "../project6", "Main"},
+        {"vm-translator", "../project8", "Main"},
+        {"jack-compiler", "../project11", "Main"},
+        {"vm-emulator", "../vmemulator", "Main"},
+    };
+
+    private static HashMap<String, Project> projects = new HashMap<>();
+
+    // A project directory's classes, as loaded when they were last compiled
+    private static class Project {
+        private final URLClassLoader loader;
+        private final long compiled;
+        private final HashMap<String, Method> mains = new HashMap<>();
+
+        private Project(File directory, long compiled) throws IOException {
+            this.loader = new URLClassLoader(new URL[] {directory.toURI().toURL()},
+                    ToolchainServer.class.getClassLoader().getParent());
+            this.compiled = compiled;
+        }
+
+        private Method main(String className) throws ReflectiveOperationException {
+            Method main = mains.get(className);
+            if (main == null) {
+                main = loader.loadClass(className).getMethod("main", String[].class);
+                mains.put(className, main);
+            }
+            return main;
+        }
+    }
+
+    // Prefixes every line written to it with the channel, "1" or "2"
+    private static class ChannelStream extends OutputStream {
+        private final OutputStream out;
+        private final byte channel;
+        private boolean lineStart = true;
+
+        private ChannelStream(OutputStream out, char channel) {
+            this.out = out;
+            this.channel = (byte) channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (lineStart) {
+                out.write(channel);
+                lineStart = false;
+            }
+            out.write(b);
+            lineStart = b == '\n';
+        }
+
+        // Ends an unfinished last line, so the exit code starts a line of its own
+        private void endLine() throws IOException {
+            if (!lineStart) {
+                write('\n');
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        PrintStream console = System.out;
+        PrintStream consoleErr = System.err;
+
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            console.println("Toolchain server listening on 127.0.0.1:" + port);
+            while (true) {
+                try (Socket socket = server.accept()) {
+                    if (!serve(socket)) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    consoleErr.println("Toolchain server: " + e.getMessage());
+                } finally {
+                    System.setOut(console);
+                    System.setErr(consoleErr);
+                }
+            }
+        }
+    }
+
+    // Runs one request, false if it was "stop"
+    private static boolean serve(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        String tool = in.readLine();
+        if (tool == null || tool.equals("stop")) {
+            return tool == null;
+        }
+        OutputStream socketOut = socket.getOutputStream();
+        // Anything but a known tool is refused before the rest of the request is read
+        String[] entry = tool(tool);
+        if (entry == null) {
+            refuse(socketOut, "Unknown tool: " + tool);
+            return true;
+        }
+        File workingDirectory = new File(String.valueOf(in.readLine()));
+        String[] toolArgs;
+        try {
+            toolArgs = new String[Integer.parseInt(in.readLine())];
+        } catch (NumberFormatException e) {
+            refuse(socketOut, "Bad number of arguments: " + e.getMessage());
+            return true;
+        }
+        for (int i = 0; i < toolArgs.length; i++) {
+            toolArgs[i] = resolve(workingDirectory, in.readLine());
+        }
+
+        ChannelStream out = new ChannelStream(socketOut, '1');
+        ChannelStream err = new ChannelStream(socketOut, '2');
+        PrintStream outStream = new PrintStream(out, true, StandardCharsets.UTF_8);
+        PrintStream errStream = new PrintStream(err, true, StandardCharsets.UTF_8);
+        System.setOut(outStream);
+        System.setErr(errStream);
+
+        int exitCode = 0;
+        try {
+            project(new File(entry[1]).getCanonicalFile()).main(entry[2]).invoke(null, (Object) toolArgs);
+        } catch (InvocationTargetException e) {
+            e.getCause().printStackTrace(errStream);
+            exitCode = 1;
+        } catch (ReflectiveOperationException e) {
+            errStream.println("Cannot run " + tool + ": " + e);
+            exitCode = 1;
+        }
+
+        outStream.flush();
+        errStream.flush();
+        out.endLine();
+        err.endLine();
+        socketOut.write(("x" + exitCode + "\n").getBytes(StandardCharsets.UTF_8));
+        socketOut.flush();
+        return true;
+    }
+
+    // Answers a request that can't run with an error, and exit code 1
+    private static void refuse(OutputStream socketOut, String message) throws IOException {
+        socketOut.write(("2" + message + "\nx1\n").getBytes(StandardCharsets.UTF_8));
+        socketOut.flush();
+    }
+
+    // A tool's entry in TOOLS, null if there is no such tool
+    private static String[] tool(String id) {
+        for (String[] entry : TOOLS) {
+            if (entry[0].equals(id)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // The project's classes, loaded again if they were compiled since the last request
+    private static Project project(File directory) throws IOException {
+        long compiled = 0;
+        File[] classes = directory.listFiles((dir, name) -> name.endsWith(".class"));
+        if (classes != null) {
+            for (File file : classes) {
+                compiled = Math.max(compiled, file.lastModified());
+            }
+        }
+
+        Project project = projects.get(directory.getPath());
+        if (project == null || project.compiled != compiled) {
+            if (project != null) {
+                project.loader.close();
+            }
+            project = new Project(directory, compiled);
+            projects.put(directory.getPath(), project);
+        }
+        return project;
+    }
+
+    // The tools resolve paths against the server's directory, so the client's relative paths
+    // are made absolute. Anything that isn't an existing file is passed as is.
+    private static String resolve(File workingDirectory, String arg) {
+        File file = new File(arg);
+        if (arg.startsWith("-") || file.isAbsolute()) {
+            return arg;
+        }
+        File resolved = new File(workingDirectory, arg);
+        return resolved.exists() ? resolved.getPath() : arg;
+    }
+}
@@ -0,0 +1,8 @@
+/*
+ * A function the Machine runs as Java code instead of VM code, such as the OS's.
+ * It gets its arguments where the VM call left them, ram[arg] to ram[arg + nArgs - 1],
+ * and returns the value the call pushes in their place.
+ */
+public interface Builtin {
+    int call(Machine machine, int[] ram, int arg, int nArgs);
+}
@@ -0,0 +1,318 @@
+/*
+ * Runs a linked Program over the Hack RAM. The memory map is the Hack platform's: SP, LCL,
+ * ARG, THIS and THAT in RAM[0..4], temp at 5, statics from 16, the stack from 256, the heap,
+ * the screen at 16384 and the keyboard at 24576. Frames are laid out as the VM translator
+ * lays them out, so a program finds the same values where the CPU emulator would.
+ * Values are kept as 16-bit two's complement, so arithmetic wraps around like the ALU's.
+ */
+public class Machine {
+    public static final int RAM_SIZE = 32768;
+    private static final int SP = 0;
+    private static final int LCL = 1;
+    private static final int ARG = 2;
+    private static final int THIS = 3;
+    private static final int THAT = 4;
+    private static final int STACK_BASE = 256;
+
+    public final int[] ram = new int[RAM_SIZE];
+    private Program program;
+    private boolean halted = false;
+    private long commands = 0;
+    // Commands run as part of a superinstruction, which took no dispatch of their own
+    private long fusedCommands = 0;
+    private long calls = 0;
+    private long builtinCalls = 0;
+
+    public Machine(Program program) {
+        this.program = program;
+    }
+
+    // Runs from the command at start until the program halts or has made maxDispatches dispatches.
+    // Returns whether it halted.
+    public boolean run(int start, long maxDispatches) {
+        int[] ram = this.ram;
+        int[] opcodes = program.opcodes;
+        int[] operands = program.operands;
+        int[] nArgs = program.nArgs;
+        Builtin[] builtins = program.builtins.toArray(new Builtin[0]);
+
+        ram[SP] = STACK_BASE;
+        int sp = STACK_BASE;
+        int pc = start;
+        long count = 0;
+        long fused = 0;
+        halted = false;
+
+        try {
+            while (count < maxDispatches) {
+                int command = pc++;
+                count++;
+                switch (opcodes[command]) {
+                    case Program.PUSH_CONSTANT:
+                        ram[sp++] = operands[command];
+                        break;
+                    case Program.PUSH_LOCAL:
+                        ram[sp++] = ram[ram[LCL] + operands[command]];
+                        break;
+                    case Program.PUSH_ARGUMENT:
+                        ram[sp++] = ram[ram[ARG] + operands[command]];
+                        break;
+                    case Program.PUSH_THIS:
+                        ram[sp++] = ram[ram[THIS] + operands[command]];
+                        break;
+                    case Program.PUSH_THAT:
+                        ram[sp++] = ram[ram[THAT] + operands[command]];
+                        break;
+                    case Program.PUSH_ADDRESS:
+                        ram[sp++] = ram[operands[command]];
+                        break;
+
+                    case Program.POP_LOCAL:
+                        ram[ram[LCL] + operands[command]] = ram[--sp];
+                        break;
+                    case Program.POP_ARGUMENT:
+                        ram[ram[ARG] + operands[command]] = ram[--sp];
+                        break;
+                    case Program.POP_THIS:
+                        ram[ram[THIS] + operands[command]] = ram[--sp];
+                        break;
+                    case Program.POP_THAT:
+                        ram[ram[THAT] + operands[command]] = ram[--sp];
+                        break;
+                    case Program.POP_ADDRESS:
+                        ram[operands[command]] = ram[--sp];
+                        break;
+
+                    case Program.ADD:
+                        sp--;
+                        ram[sp - 1] = (short) (ram[sp - 1] + ram[sp]);
+                        break;
+                    case Program.SUB:
+                        sp--;
+                        ram[sp - 1] = (short) (ram[sp - 1] - ram[sp]);
+                        break;
+                    case Program.NEG:
+                        ram[sp - 1] = (short) -ram[sp - 1];
+                        break;
+                    case Program.EQ:
+                        sp--;
+                        ram[sp - 1] = ram[sp - 1] == ram[sp] ? -1 : 0;
+                        break;
+                    case Program.GT:
+                        sp--;
+                        ram[sp - 1] = ram[sp - 1] > ram[sp] ? -1 : 0;
+                        break;
+                    case Program.LT:
+                        sp--;
+                        ram[sp - 1] = ram[sp - 1] < ram[sp] ? -1 : 0;
+                        break;
+                    case Program.AND:
+                        sp--;
+                        ram[sp - 1] &= ram[sp];
+                        break;
+                    case Program.OR:
+                        sp--;
+                        ram[sp - 1] |= ram[sp];
+                        break;
+                    case Program.NOT:
+                        ram[sp - 1] = ~ram[sp - 1];
+                        break;
+
+                    case Program.GOTO:
+                        pc = operands[command];
+                        break;
+                    case Program.IF_GOTO:
+                        if (ram[--sp] != 0) {
+                            pc = operands[command];
+                        }
+                        break;
+
+                    case Program.FUNCTION:
+                        for (int i = operands[command]; i > 0; i--) {
+                            ram[sp++] = 0;
+                        }
+                        break;
+
+                    case Program.CALL: {
+                        int arg = sp - nArgs[command];
+                        // The return address is a command index, which only this frame slot ever holds
+                        ram[sp] = pc;
+                        ram[sp + 1] = ram[LCL];
+                        ram[sp + 2] = ram[ARG];
+                        ram[sp + 3] = ram[THIS];
+                        ram[sp + 4] = ram[THAT];
+                        sp += 5;
+                        ram[ARG] = arg;
+                        ram[LCL] = sp;
+                        pc = operands[command];
+                        calls++;
+                        break;
+                    }
+
+                    // Math.multiply, inline
+                    case Program.MULTIPLY:
+                        sp--;
+                        ram[sp - 1] = (short) (ram[sp - 1] * ram[sp]);
+                        builtinCalls++;
+                        break;
+
+                    // Math.divide, inline unless it is a division by zero, which the built-in reports
+                    case Program.DIVIDE:
+                        if (ram[sp - 1] != 0) {
+                            sp--;
+                            ram[sp - 1] = (short) (ram[sp - 1] / ram[sp]);
+                            builtinCalls++;
+                            break;
+                        }
+                        sp = callBuiltin(builtins[operands[command]], sp, 2);
+                        if (halted) {
+                            return true;
+                        }
+                        break;
+
+                    // String.appendChar of the built-in String, inline unless the string is full
+                    case Program.APPEND_CHAR: {
+                        int string = ram[sp - 2];
+                        int length = ram[string + 1];
+                        if (length < ram[string]) {
+                            ram[string + 2 + length] = ram[sp - 1];
+                            ram[string + 1] = length + 1;
+                            sp--;
+                            builtinCalls++;
+                            break;
+                        }
+                        sp = callBuiltin(builtins[operands[command]], sp, 2);
+                        if (halted) {
+                            return true;
+                        }
+                        break;
+                    }
+
+                    case Program.CALL_BUILTIN:
+                        sp = callBuiltin(builtins[operands[command]], sp, nArgs[command]);
+                        if (halted) {
+                            return true;
+                        }
+                        break;
+
+                    case Program.RETURN: {
+                        int frame = ram[LCL];
+                        pc = ram[frame - 5];
+                        int arg = ram[ARG];
+                        ram[arg] = ram[sp - 1];
+                        sp = arg + 1;
+                        ram[THAT] = ram[frame - 1];
+                        ram[THIS] = ram[frame - 2];
+                        ram[ARG] = ram[frame - 3];
+                        ram[LCL] = ram[frame - 4];
+                        break;
+                    }
+
+                    case Program.PUSH_LOCAL_ADD_CONSTANT:
+                        ram[sp++] = (short) (ram[ram[LCL] + operands[command]] + operands[command + 1]);
+                        pc += 2;
+                        fused += 2;
+                        break;
+
+                    case Program.ADD_LOCAL:
+                        ram[sp - 1] = (short) (ram[sp - 1] + ram[ram[LCL] + operands[command]]);
+                        pc++;
+                        fused++;
+                        break;
+                    case Program.ADD_CONSTANT:
+                        ram[sp - 1] = (short) (ram[sp - 1] + operands[command]);
+                        pc++;
+                        fused++;
+                        break;
+
+                    case Program.IF_LT:
+                        sp -= 2;
+                        pc = ram[sp] < ram[sp + 1] ? operands[command] : pc + 1;
+                        fused++;
+                        break;
+                    case Program.IF_GT:
+                        sp -= 2;
+                        pc = ram[sp] > ram[sp + 1] ? operands[command] : pc + 1;
+                        fused++;
+                        break;
+                    case Program.IF_EQ:
+                        sp -= 2;
+                        pc = ram[sp] == ram[sp + 1] ? operands[command] : pc + 1;
+                        fused++;
+                        break;
+                    case Program.IF_NOT_LT:
+                        sp -= 2;
+                        pc = ram[sp] < ram[sp + 1] ? pc + 2 : operands[command];
+                        fused += 2;
+                        break;
+                    case Program.IF_NOT_GT:
+                        sp -= 2;
+                        pc = ram[sp] > ram[sp + 1] ? pc + 2 : operands[command];
+                        fused += 2;
+                        break;
+                    case Program.IF_NOT_EQ:
+                        sp -= 2;
+                        pc = ram[sp] == ram[sp + 1] ? pc + 2 : operands[command];
+                        fused += 2;
+                        break;
+
+                    case Program.READ_ARRAY: {
+                        sp--;
+                        int address = (short) (ram[sp - 1] + ram[sp]);
+                        ram[THAT] = address;
+                        ram[sp - 1] = ram[address];
+                        pc += 2;
+                        fused += 2;
+                        break;
+                    }
+
+                    case Program.WRITE_ARRAY: {
+                        int value = ram[--sp];
+                        ram[operands[command]] = value;
+                        int address = ram[--sp];
+                        ram[THAT] = address;
+                        ram[address] = value;
+                        pc += 3;
+                        fused += 3;
+                        break;
+                    }
+
+                    case Program.HALT:
+                        halted = true;
+                        return true;
+
+                    default:
+                        throw new IllegalStateException("Bad opcode " + opcodes[command]);
+                }
+            }
+            return false;
+
+        } catch (ArrayIndexOutOfBoundsException e) {
+            int command = pc - 1;
+            throw new IllegalStateException("Memory access out of range in " + program.functionAt(command)
+                    + " (command " + command + ", SP " + sp + ")", e);
+        } finally {
+            ram[SP] = sp;
+            commands += count + fused;
+            fusedCommands += fused;
+        }
+    }
+
+    // Calls a built-in with the nArgs values on top of the stack, returns the stack pointer after it
+    private int callBuiltin(Builtin builtin, int sp, int nArgs) {
+        int arg = sp - nArgs;
+        ram[SP] = sp;
+        ram[arg] = (short) builtin.call(this, ram, arg, nArgs);
+        builtinCalls++;
+        return arg + 1;
+    }
+
+    // Stops the run once the current built-in returns, as Sys.halt does
+    public void halt() {
+        halted = true;
+    }
+
+    public String stats() {
+        return "commands: " + commands + " in " + (commands - fusedCommands) + " dispatches, calls: " + calls + ", built-in calls: " + builtinCalls;
+    }
+}
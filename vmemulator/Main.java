@@ -0,0 +1,105 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/*
+ * Runs .vm files directly, without translating and assembling them first.
+ * The input is a .vm file or a directory of them, as for the VM translator. OS classes with
+ * no .vm file are run as built-in Java functions (see OS).
+ *
+ * Options, after the input path:
+ *   --native       use the built-in OS even for classes that have a .vm file
+ *   --intrinsics   use the built-in Math functions even if there is a Math.vm, as they keep no
+ *                  state and compute the same results (Math.multiply and Math.divide run inline)
+ *   --no-fuse      run every command on its own, without superinstructions (see Program.fuse)
+ *   --cycles N     stop after N dispatches, a superinstruction being one (default 100000000)
+ *   --dump A-B     print RAM[A..B] when the program stops, as "A=value A+1=value ..."
+ *   --stats        print the number of commands and calls run and the time taken
+ */
+public class Main {
+    private static final long DEFAULT_CYCLES = 100_000_000L;
+
+    public static void main(String[] args) throws IOException {
+        boolean preferBuiltins = false;
+        boolean intrinsics = false;
+        boolean fuse = true;
+        boolean printStats = false;
+        long maxCommands = DEFAULT_CYCLES;
+        int dumpFrom = 0;
+        int dumpTo = -1;
+
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--native":
+                    preferBuiltins = true;
+                    break;
+
+                case "--intrinsics":
+                    intrinsics = true;
+                    break;
+
+                case "--no-fuse":
+                    fuse = false;
+                    break;
+
+                case "--cycles":
+                    maxCommands = Long.parseLong(args[++i]);
+                    break;
+
+                case "--dump": {
+                    String[] range = args[++i].split("-");
+                    dumpFrom = Integer.parseInt(range[0]);
+                    dumpTo = range.length > 1 ? Integer.parseInt(range[1]) : dumpFrom;
+                    break;
+                }
+
+                case "--stats":
+                    printStats = true;
+                    break;
+
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    break;
+            }
+        }
+
+        // The program's output is buffered, and flushed when it stops or waits for input
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+        OS os = new OS(out);
+        Program program = new Program(os.builtins(), preferBuiltins, intrinsics, fuse);
+
+        File input = new File(args[0]);
+        File[] files = input.isDirectory() ? input.listFiles() : new File[] {input};
+        // listFiles has no defined order, and statics are numbered in the order files are read
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().endsWith(".vm")) {
+                program.addFile(file);
+            }
+        }
+
+        long start = System.nanoTime();
+        Machine machine = new Machine(program);
+        os.init(machine.ram);
+        boolean halted = machine.run(program.link(), maxCommands);
+        long time = System.nanoTime() - start;
+        out.flush();
+
+        if (!halted) {
+            System.out.println("Stopped after " + maxCommands + " dispatches");
+        }
+        if (dumpTo >= dumpFrom) {
+            StringBuilder dump = new StringBuilder();
+            for (int address = dumpFrom; address <= dumpTo; address++) {
+                dump.append(address == dumpFrom ? "" : " ").append(address).append('=').append(machine.ram[address]);
+            }
+            System.out.println(dump);
+        }
+        if (printStats) {
+            System.out.println(machine.stats());
+            System.out.println("time: " + time / 1_000_000 + " ms");
+        }
+    }
+}
@@ -0,0 +1,437 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.HashMap;
+
+/*
+ * The Jack OS as built-in Java functions: Math, Memory, Array, String, Output, Screen, Keyboard
+ * and Sys. They keep their data in the Hack RAM as the course's OS does, so VM code can read it:
+ * heap blocks from 2048 to 16383 with their size in the word before them, strings as
+ * [capacity, length, characters...] and the screen at 16384.
+ * Output writes text to standard output rather than drawing the font into the screen, and
+ * Keyboard reads lines from standard input.
+ * Errors are reported like the course's Sys.error, as "ERR<code>", and halt the program.
+ */
+public class OS {
+    private static final int HEAP_BASE = 2048;
+    private static final int HEAP_END = 16384;
+    private static final int SCREEN = 16384;
+    private static final int KEYBOARD = 24576;
+    private static final int NEW_LINE = 128;
+    private static final int BACKSPACE = 129;
+    private static final int DOUBLE_QUOTE = 34;
+
+    // Every built-in function, by its id
+    private static final String[] NAMES = {
+        "Math.init", "Math.multiply", "Math.divide", "Math.min", "Math.max", "Math.abs", "Math.sqrt",
+        "Memory.init", "Memory.peek", "Memory.poke", "Memory.alloc", "Memory.deAlloc",
+        "Array.new", "Array.dispose",
+        "String.new", "String.dispose", "String.length", "String.charAt", "String.setCharAt",
+        "String.appendChar", "String.eraseLastChar", "String.intValue", "String.setInt",
+        "String.backSpace", "String.doubleQuote", "String.newLine",
+        "Output.init", "Output.moveCursor", "Output.printChar", "Output.printString", "Output.printInt",
+        "Output.println", "Output.backSpace",
+        "Screen.init", "Screen.clearScreen", "Screen.setColor", "Screen.drawPixel", "Screen.drawLine",
+        "Screen.drawRectangle", "Screen.drawCircle",
+        "Keyboard.init", "Keyboard.keyPressed", "Keyboard.readChar", "Keyboard.readLine", "Keyboard.readInt",
+        "Sys.halt", "Sys.error", "Sys.wait"
+    };
+
+    private PrintStream out;
+    private BufferedReader in;
+    // Start of the free list: each free block is [size, next] at its address - 1
+    private int freeList;
+    private boolean color = true;
+
+    // One built-in function, dispatching to the OS by its id
+    private class Function implements Builtin {
+        private final int id;
+
+        private Function(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int call(Machine machine, int[] ram, int arg, int nArgs) {
+            return OS.this.call(id, machine, ram, arg);
+        }
+    }
+
+    public OS(PrintStream out) {
+        this.out = out;
+    }
+
+    // The built-in functions by name
+    public HashMap<String, Builtin> builtins() {
+        HashMap<String, Builtin> builtins = new HashMap<>();
+        for (int id = 0; id < NAMES.length; id++) {
+            builtins.put(NAMES[id], new Function(id));
+        }
+        return builtins;
+    }
+
+    // The other OS classes a built-in class relies on
+    public static String[] needs(String className) {
+        switch (className) {
+            case "Array":
+            case "String":
+                return new String[] {"Memory"};
+            case "Output":
+                return new String[] {"String"};
+            case "Keyboard":
+                return new String[] {"String", "Memory"};
+            default:
+                return new String[0];
+        }
+    }
+
+    // Whether a built-in keeps no state of its own, so it does exactly what any correct VM
+    // code for it does and can stand in for that code
+    public static boolean isStateless(String function) {
+        return function.startsWith("Math.") && !function.equals("Math.init");
+    }
+
+    // Sets up the heap, as Sys.init would before the program starts
+    public void init(int[] ram) {
+        freeList = HEAP_BASE + 1;
+        ram[freeList - 1] = HEAP_END - HEAP_BASE - 1;
+        ram[freeList] = 0;
+    }
+
+    private int call(int id, Machine machine, int[] ram, int arg) {
+        switch (NAMES[id]) {
+            case "Math.init":
+            case "Memory.init":
+            case "Output.init":
+            case "Screen.init":
+            case "Keyboard.init":
+                return 0;
+
+            case "Math.multiply":
+                return ram[arg] * ram[arg + 1];
+            case "Math.divide":
+                if (ram[arg + 1] == 0) {
+                    return error(machine, 3);
+                }
+                return ram[arg] / ram[arg + 1];
+            case "Math.min":
+                return Math.min(ram[arg], ram[arg + 1]);
+            case "Math.max":
+                return Math.max(ram[arg], ram[arg + 1]);
+            case "Math.abs":
+                return Math.abs(ram[arg]);
+            case "Math.sqrt":
+                if (ram[arg] < 0) {
+                    return error(machine, 4);
+                }
+                return (int) Math.sqrt(ram[arg]);
+
+            case "Memory.peek":
+                return ram[ram[arg] & 0x7FFF];
+            case "Memory.poke":
+                ram[ram[arg] & 0x7FFF] = ram[arg + 1];
+                return 0;
+            case "Memory.alloc":
+                return alloc(machine, ram, ram[arg], 5);
+            case "Memory.deAlloc":
+            case "Array.dispose":
+                deAlloc(ram, ram[arg]);
+                return 0;
+
+            case "Array.new":
+                if (ram[arg] <= 0) {
+                    return error(machine, 2);
+                }
+                return alloc(machine, ram, ram[arg], 6);
+
+            case "String.new": {
+                if (ram[arg] < 0) {
+                    return error(machine, 14);
+                }
+                int string = alloc(machine, ram, ram[arg] + 2, 6);
+                if (string == 0) {
+                    return 0;
+                }
+                ram[string] = ram[arg];
+                ram[string + 1] = 0;
+                return string;
+            }
+            case "String.dispose":
+                deAlloc(ram, ram[arg]);
+                return 0;
+            case "String.length":
+                return ram[ram[arg] + 1];
+            case "String.charAt": {
+                int string = ram[arg];
+                if (ram[arg + 1] < 0 || ram[arg + 1] >= ram[string + 1]) {
+                    return error(machine, 15);
+                }
+                return ram[string + 2 + ram[arg + 1]];
+            }
+            case "String.setCharAt": {
+                int string = ram[arg];
+                if (ram[arg + 1] < 0 || ram[arg + 1] >= ram[string + 1]) {
+                    return error(machine, 16);
+                }
+                ram[string + 2 + ram[arg + 1]] = ram[arg + 2];
+                return 0;
+            }
+            case "String.appendChar": {
+                int string = ram[arg];
+                if (ram[string + 1] == ram[string]) {
+                    return error(machine, 17);
+                }
+                ram[string + 2 + ram[string + 1]] = ram[arg + 1];
+                ram[string + 1]++;
+                return string;
+            }
+            case "String.eraseLastChar": {
+                int string = ram[arg];
+                if (ram[string + 1] == 0) {
+                    return error(machine, 18);
+                }
+                ram[string + 1]--;
+                return 0;
+            }
+            case "String.intValue":
+                return intValue(ram, ram[arg]);
+            case "String.setInt":
+                return setInt(machine, ram, ram[arg], ram[arg + 1]);
+            case "String.backSpace":
+                return BACKSPACE;
+            case "String.doubleQuote":
+                return DOUBLE_QUOTE;
+            case "String.newLine":
+                return NEW_LINE;
+
+            case "Output.moveCursor":
+                return 0;
+            case "Output.printChar":
+                printChar(ram[arg]);
+                return 0;
+            case "Output.printString": {
+                int string = ram[arg];
+                for (int i = 0; i < ram[string + 1]; i++) {
+                    printChar(ram[string + 2 + i]);
+                }
+                return 0;
+            }
+            case "Output.printInt":
+                out.print(ram[arg]);
+                return 0;
+            case "Output.println":
+                out.println();
+                return 0;
+            case "Output.backSpace":
+                out.print('\b');
+                return 0;
+
+            case "Screen.clearScreen":
+                for (int address = SCREEN; address < KEYBOARD; address++) {
+                    ram[address] = 0;
+                }
+                return 0;
+            case "Screen.setColor":
+                color = ram[arg] != 0;
+                return 0;
+            case "Screen.drawPixel":
+                drawPixel(ram, ram[arg], ram[arg + 1]);
+                return 0;
+            case "Screen.drawLine":
+                drawLine(ram, ram[arg], ram[arg + 1], ram[arg + 2], ram[arg + 3]);
+                return 0;
+            case "Screen.drawRectangle":
+                for (int y = ram[arg + 1]; y <= ram[arg + 3]; y++) {
+                    for (int x = ram[arg]; x <= ram[arg + 2]; x++) {
+                        drawPixel(ram, x, y);
+                    }
+                }
+                return 0;
+            case "Screen.drawCircle": {
+                int r = ram[arg + 2];
+                for (int dy = -r; dy <= r; dy++) {
+                    int dx = (int) Math.sqrt(r * r - dy * dy);
+                    for (int x = ram[arg] - dx; x <= ram[arg] + dx; x++) {
+                        drawPixel(ram, x, ram[arg + 1] + dy);
+                    }
+                }
+                return 0;
+            }
+
+            case "Keyboard.keyPressed":
+                return ram[KEYBOARD];
+            case "Keyboard.readChar": {
+                int c = read();
+                return c == '\n' ? NEW_LINE : c;
+            }
+            case "Keyboard.readLine":
+                return readLine(machine, ram, ram[arg]);
+            case "Keyboard.readInt":
+                return intValue(ram, readLine(machine, ram, ram[arg]));
+
+            case "Sys.halt":
+                machine.halt();
+                return 0;
+            case "Sys.error":
+                return error(machine, ram[arg]);
+            case "Sys.wait":
+                return 0;
+
+            default:
+                throw new IllegalStateException("No built-in " + NAMES[id]);
+        }
+    }
+
+    private int error(Machine machine, int code) {
+        out.println("ERR" + code);
+        machine.halt();
+        return 0;
+    }
+
+    // First fit over the free list. A block's size is kept in the word before it.
+    private int alloc(Machine machine, int[] ram, int size, int errorCode) {
+        if (size <= 0) {
+            return error(machine, errorCode);
+        }
+        int previous = 0;
+        for (int block = freeList; block != 0; block = ram[block]) {
+            int blockSize = ram[block - 1];
+            if (blockSize >= size) {
+                // Split off the rest if it can hold a block of its own
+                if (blockSize - size >= 3) {
+                    int rest = block + size + 1;
+                    ram[rest - 1] = blockSize - size - 1;
+                    ram[rest] = ram[block];
+                    ram[block - 1] = size;
+                    unlink(ram, previous, rest);
+                } else {
+                    unlink(ram, previous, ram[block]);
+                }
+                return block;
+            }
+            previous = block;
+        }
+        return error(machine, 6);
+    }
+
+    // Replaces the free block after previous (or the first, if previous is 0) with next
+    private void unlink(int[] ram, int previous, int next) {
+        if (previous == 0) {
+            freeList = next;
+        } else {
+            ram[previous] = next;
+        }
+    }
+
+    private void deAlloc(int[] ram, int block) {
+        if (block < HEAP_BASE + 1 || block >= HEAP_END) {
+            return;
+        }
+        ram[block] = freeList;
+        freeList = block;
+    }
+
+    private static int intValue(int[] ram, int string) {
+        int value = 0;
+        int i = 0;
+        boolean negative = ram[string + 1] > 0 && ram[string + 2] == '-';
+        if (negative) {
+            i++;
+        }
+        for (; i < ram[string + 1]; i++) {
+            int c = ram[string + 2 + i];
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = (short) (value * 10 + c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private int setInt(Machine machine, int[] ram, int string, int value) {
+        String digits = Integer.toString(value);
+        if (digits.length() > ram[string]) {
+            return error(machine, 19);
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            ram[string + 2 + i] = digits.charAt(i);
+        }
+        ram[string + 1] = digits.length();
+        return 0;
+    }
+
+    private void printChar(int c) {
+        if (c == NEW_LINE) {
+            out.println();
+        } else if (c == BACKSPACE) {
+            out.print('\b');
+        } else {
+            out.print((char) c);
+        }
+    }
+
+    private void drawPixel(int[] ram, int x, int y) {
+        if (x < 0 || x > 511 || y < 0 || y > 255) {
+            return;
+        }
+        int address = SCREEN + y * 32 + x / 16;
+        int bit = 1 << (x & 15);
+        ram[address] = (short) (color ? ram[address] | bit : ram[address] & ~bit);
+    }
+
+    private void drawLine(int[] ram, int x1, int y1, int x2, int y2) {
+        int dx = Math.abs(x2 - x1);
+        int dy = -Math.abs(y2 - y1);
+        int stepX = x1 < x2 ? 1 : -1;
+        int stepY = y1 < y2 ? 1 : -1;
+        int error = dx + dy;
+        while (true) {
+            drawPixel(ram, x1, y1);
+            if (x1 == x2 && y1 == y2) {
+                return;
+            }
+            if (2 * error >= dy) {
+                error += dy;
+                x1 += stepX;
+            }
+            if (2 * error <= dx) {
+                error += dx;
+                y1 += stepY;
+            }
+        }
+    }
+
+    private int read() {
+        try {
+            if (in == null) {
+                in = new BufferedReader(new InputStreamReader(System.in));
+            }
+            out.flush();
+            return in.read();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // Prints the prompt and reads a line into a new string
+    private int readLine(Machine machine, int[] ram, int prompt) {
+        for (int i = 0; i < ram[prompt + 1]; i++) {
+            printChar(ram[prompt + 2 + i]);
+        }
+        StringBuilder line = new StringBuilder();
+        for (int c = read(); c != -1 && c != '\n'; c = read()) {
+            line.append((char) c);
+        }
+        int string = alloc(machine, ram, Math.max(line.length(), 1) + 2, 6);
+        if (string == 0) {
+            return 0;
+        }
+        ram[string] = Math.max(line.length(), 1);
+        ram[string + 1] = line.length();
+        for (int i = 0; i < line.length(); i++) {
+            ram[string + 2 + i] = line.charAt(i);
+        }
+        return string;
+    }
+}
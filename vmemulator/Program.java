@@ -0,0 +1,543 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/*
+ * A set of .vm files parsed once into arrays of opcodes and operands, so the Machine never looks
+ * at text. Everything that can be resolved at load time is: segments with a fixed base (temp,
+ * pointer, static) become RAM addresses, labels and functions become command indexes, and calls
+ * to OS classes with no VM code go to the matching Builtin.
+ */
+public class Program {
+    // Opcodes
+    static final int PUSH_CONSTANT = 0;
+    static final int PUSH_LOCAL = 1;
+    static final int PUSH_ARGUMENT = 2;
+    static final int PUSH_THIS = 3;
+    static final int PUSH_THAT = 4;
+    // temp, pointer and static, at a fixed address
+    static final int PUSH_ADDRESS = 5;
+    static final int POP_LOCAL = 6;
+    static final int POP_ARGUMENT = 7;
+    static final int POP_THIS = 8;
+    static final int POP_THAT = 9;
+    static final int POP_ADDRESS = 10;
+    static final int ADD = 11;
+    static final int SUB = 12;
+    static final int NEG = 13;
+    static final int EQ = 14;
+    static final int GT = 15;
+    static final int LT = 16;
+    static final int AND = 17;
+    static final int OR = 18;
+    static final int NOT = 19;
+    static final int GOTO = 20;
+    static final int IF_GOTO = 21;
+    static final int FUNCTION = 22;
+    static final int CALL = 23;
+    static final int CALL_BUILTIN = 24;
+    static final int RETURN = 25;
+    static final int HALT = 26;
+    // Calls of built-ins the Machine runs inline. The operand is the built-in's index,
+    // which it calls for the cases it doesn't handle itself (errors).
+    static final int MULTIPLY = 27;
+    static final int DIVIDE = 28;
+    static final int APPEND_CHAR = 29;
+    // Superinstructions, each standing for the commands it starts (see fuse). Those stay in place
+    // after it with their operands, which it reads, and it continues after the last of them.
+    // push local i, push constant k, add
+    static final int PUSH_LOCAL_ADD_CONSTANT = 30;
+    // push local i, add
+    static final int ADD_LOCAL = 39;
+    // push constant k, add
+    static final int ADD_CONSTANT = 40;
+    // lt, gt or eq followed by if-goto; the operand is the if-goto's target
+    static final int IF_LT = 31;
+    static final int IF_GT = 32;
+    static final int IF_EQ = 33;
+    // lt, gt or eq followed by not and if-goto, as while and if statements compile
+    static final int IF_NOT_LT = 34;
+    static final int IF_NOT_GT = 35;
+    static final int IF_NOT_EQ = 36;
+    // add, pop pointer 1, push that 0: reading a[i]
+    static final int READ_ARRAY = 37;
+    // pop temp t, pop pointer 1, push temp t, pop that 0: the end of let a[i] = value
+    static final int WRITE_ARRAY = 38;
+
+    private static final int STATIC_BASE = 16;
+    private static final int STATIC_END = 256;
+
+    // One entry per command: the opcode, its operand (value, offset, address or target)
+    // and for calls the number of arguments
+    int[] opcodes = new int[1024];
+    int[] operands = new int[1024];
+    int[] nArgs = new int[1024];
+    int size = 0;
+    // Builtins that calls can go to, by CALL_BUILTIN operand
+    ArrayList<Builtin> builtins = new ArrayList<>();
+    ArrayList<String> builtinNames = new ArrayList<>();
+
+    private HashMap<String, Integer> functions = new HashMap<>();
+    // Classes with VM code, whose built-ins are not used unless preferBuiltins
+    private HashSet<String> classes = new HashSet<>();
+    private HashMap<String, Builtin> available;
+    private boolean preferBuiltins;
+    private boolean intrinsics;
+    private boolean fuse;
+    private HashMap<String, Integer> statics = new HashMap<>();
+
+    // Jumps and calls to patch once every label and function is known
+    private ArrayList<Integer> fixups = new ArrayList<>();
+    private ArrayList<String> fixupNames = new ArrayList<>();
+    private HashMap<String, Integer> labels = new HashMap<>();
+
+    // Names of the functions in the order they were defined, for error messages
+    private ArrayList<String> functionNames = new ArrayList<>();
+    private ArrayList<Integer> functionStarts = new ArrayList<>();
+
+    // available: the built-in functions; preferBuiltins: use them even where there is VM code;
+    // intrinsics: use the built-ins that keep no state (Math's) even where there is VM code;
+    // fuse: replace common sequences of commands with superinstructions
+    public Program(HashMap<String, Builtin> available, boolean preferBuiltins, boolean intrinsics, boolean fuse) {
+        this.available = available;
+        this.preferBuiltins = preferBuiltins;
+        this.intrinsics = intrinsics;
+        this.fuse = fuse;
+    }
+
+    public void addFile(File file) throws IOException {
+        String fileName = file.getName().substring(0, file.getName().lastIndexOf('.'));
+        // Labels are local to their function, or to the file before the first function
+        String scope = fileName;
+        int lineNumber = 0;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf("//");
+                if (comment != -1) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                String[] words = line.split("\\s+");
+                try {
+                    switch (words[0]) {
+                        case "push":
+                            addPush(words[1], Integer.parseInt(words[2]), fileName);
+                            break;
+
+                        case "pop":
+                            addPop(words[1], Integer.parseInt(words[2]), fileName);
+                            break;
+
+                        case "label":
+                            labels.put(scope + "$" + words[1], size);
+                            break;
+
+                        case "goto":
+                            addJump(GOTO, scope + "$" + words[1]);
+                            break;
+
+                        case "if-goto":
+                            addJump(IF_GOTO, scope + "$" + words[1]);
+                            break;
+
+                        case "function":
+                            scope = words[1];
+                            if (functions.containsKey(scope)) {
+                                throw new IllegalArgumentException("Function " + scope + " is defined twice");
+                            }
+                            functions.put(scope, size);
+                            classes.add(className(scope));
+                            functionNames.add(scope);
+                            functionStarts.add(size);
+                            add(FUNCTION, Integer.parseInt(words[2]), 0);
+                            break;
+
+                        case "call":
+                            fixups.add(size);
+                            fixupNames.add(words[1]);
+                            add(CALL, 0, Integer.parseInt(words[2]));
+                            break;
+
+                        case "return":
+                            add(RETURN, 0, 0);
+                            break;
+
+                        default:
+                            add(arithmetic(words[0]), 0, 0);
+                            break;
+                    }
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException(file.getName() + ":" + lineNumber + ": " + e.getMessage()
+                            + " in \"" + line + "\"", e);
+                }
+            }
+        }
+    }
+
+    // Resolves jumps and calls, ends the code with a HALT. Returns where the program starts:
+    // a bootstrap call of Sys.init, or of Main.main when the OS is all built-in, else the first command.
+    public int link() {
+        add(HALT, 0, 0);
+        int bootstrap = size;
+        String entry = functions.containsKey("Sys.init") ? "Sys.init"
+                : functions.containsKey("Main.main") ? "Main.main" : null;
+        if (entry != null) {
+            fixups.add(size);
+            fixupNames.add(entry);
+            add(CALL, 0, 0);
+            add(HALT, 0, 0);
+        }
+
+        for (int i = 0; i < fixups.size(); i++) {
+            int command = fixups.get(i);
+            String name = fixupNames.get(i);
+            if (opcodes[command] == CALL) {
+                linkCall(command, name);
+                continue;
+            }
+
+            Integer target = labels.get(name);
+            if (target == null) {
+                throw new IllegalArgumentException("Unknown label " + name.substring(name.indexOf('$') + 1)
+                        + " in " + name.substring(0, name.indexOf('$')));
+            }
+            operands[command] = target;
+        }
+        for (int command = 0; command < size; command++) {
+            if (opcodes[command] == GOTO && isEndlessLoop(operands[command], command)) {
+                opcodes[command] = HALT;
+            }
+        }
+
+        // The built-in OS classes keep their objects in their own layout on their own heap,
+        // so they can't be mixed with VM code of a class they rely on
+        for (String name : builtinNames) {
+            for (String needed : OS.needs(className(name))) {
+                if (classes.contains(needed) && !preferBuiltins) {
+                    throw new IllegalArgumentException("The built-in " + name + " needs the built-in " + needed
+                            + ", but there is VM code for " + needed + " (use --native)");
+                }
+            }
+        }
+        if (fuse) {
+            fuse();
+        }
+        return entry != null ? bootstrap : 0;
+    }
+
+    // Replaces the most frequent sequences in compiled Jack code with superinstructions, so the
+    // Machine dispatches once for them. They were picked by counting the sequences in the
+    // compiler's output for the course's programs and OS. A sequence is only fused when no jump
+    // lands inside it.
+    private void fuse() {
+        boolean[] targets = new boolean[size];
+        for (int command = 0; command < size; command++) {
+            if (opcodes[command] == GOTO || opcodes[command] == IF_GOTO) {
+                targets[operands[command]] = true;
+            }
+        }
+        for (int start : functionStarts) {
+            targets[start] = true;
+        }
+
+        for (int command = 0; command < size; command++) {
+            int length = 0;
+            switch (opcodes[command]) {
+                case PUSH_LOCAL:
+                    if (matches(targets, command + 1, PUSH_CONSTANT) && matches(targets, command + 2, ADD)) {
+                        length = 3;
+                        opcodes[command] = PUSH_LOCAL_ADD_CONSTANT;
+                    } else if (matches(targets, command + 1, ADD) && !isArrayRead(targets, command + 1)) {
+                        length = 2;
+                        opcodes[command] = ADD_LOCAL;
+                    }
+                    break;
+
+                case PUSH_CONSTANT:
+                    if (matches(targets, command + 1, ADD) && !isArrayRead(targets, command + 1)) {
+                        length = 2;
+                        opcodes[command] = ADD_CONSTANT;
+                    }
+                    break;
+
+                case LT:
+                case GT:
+                case EQ:
+                    if (matches(targets, command + 1, IF_GOTO)) {
+                        length = 2;
+                        operands[command] = operands[command + 1];
+                        opcodes[command] = opcodes[command] == LT ? IF_LT : opcodes[command] == GT ? IF_GT : IF_EQ;
+                    } else if (matches(targets, command + 1, NOT) && matches(targets, command + 2, IF_GOTO)) {
+                        length = 3;
+                        operands[command] = operands[command + 2];
+                        opcodes[command] = opcodes[command] == LT ? IF_NOT_LT
+                                : opcodes[command] == GT ? IF_NOT_GT : IF_NOT_EQ;
+                    }
+                    break;
+
+                case ADD:
+                    if (isArrayRead(targets, command)) {
+                        length = 3;
+                        opcodes[command] = READ_ARRAY;
+                    }
+                    break;
+
+                case POP_ADDRESS:
+                    if (operands[command] >= 5 && operands[command] <= 12
+                            && matches(targets, command + 1, POP_ADDRESS) && operands[command + 1] == 4
+                            && matches(targets, command + 2, PUSH_ADDRESS) && operands[command + 2] == operands[command]
+                            && matches(targets, command + 3, POP_THAT) && operands[command + 3] == 0) {
+                        length = 4;
+                        opcodes[command] = WRITE_ARRAY;
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+
+            command += Math.max(length - 1, 0);
+        }
+    }
+
+    // Whether the add at command starts add, pop pointer 1, push that 0, which is worth more
+    // fused on its own than with the push before it
+    private boolean isArrayRead(boolean[] targets, int command) {
+        return matches(targets, command + 1, POP_ADDRESS) && operands[command + 1] == 4
+                && matches(targets, command + 2, PUSH_THAT) && operands[command + 2] == 0;
+    }
+
+    // Whether command is in the program, has the opcode and is not the target of a jump
+    private boolean matches(boolean[] targets, int command, int opcode) {
+        return command < size && opcodes[command] == opcode && !targets[command];
+    }
+
+    // Whether the jump back from command to target loops forever, like "while (true) {}" in Sys.halt.
+    // It does if the loop writes no memory and reads none that anything else writes (the keyboard,
+    // built-ins), since then every pass takes the same branches as the one that got to the jump.
+    private boolean isEndlessLoop(int target, int command) {
+        if (target > command) {
+            return false;
+        }
+        for (int i = target; i < command; i++) {
+            switch (opcodes[i]) {
+                case PUSH_CONSTANT:
+                case PUSH_LOCAL:
+                case PUSH_ARGUMENT:
+                case ADD:
+                case SUB:
+                case NEG:
+                case EQ:
+                case GT:
+                case LT:
+                case AND:
+                case OR:
+                case NOT:
+                case IF_GOTO:
+                    break;
+                case PUSH_ADDRESS:
+                    // temp and statics, but not pointer, which may be the keyboard's address
+                    if (operands[i] < 5) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+        // and only if the jump is reached by a pass through the loop, not by a jump into its middle
+        for (int jump : fixups) {
+            if ((jump < target || jump > command) && (opcodes[jump] == GOTO || opcodes[jump] == IF_GOTO)
+                    && operands[jump] > target && operands[jump] <= command) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The function that contains a command, for error messages
+    public String functionAt(int command) {
+        String name = "";
+        for (int i = 0; i < functionStarts.size() && functionStarts.get(i) <= command; i++) {
+            name = functionNames.get(i);
+        }
+        return name;
+    }
+
+    private void linkCall(int command, String name) {
+        Builtin builtin = available.get(name);
+        Integer target = functions.get(name);
+        if (builtin != null && (preferBuiltins || !classes.contains(className(name))
+                || intrinsics && OS.isStateless(name))) {
+            int index = builtinNames.indexOf(name);
+            if (index == -1) {
+                index = builtins.size();
+                builtins.add(builtin);
+                builtinNames.add(name);
+            }
+            opcodes[command] = nArgs[command] == 2 ? intrinsic(name) : CALL_BUILTIN;
+            operands[command] = index;
+            return;
+        }
+        if (target == null) {
+            throw new IllegalArgumentException("Unknown function " + name + ", called from " + functionAt(command));
+        }
+        operands[command] = target;
+    }
+
+    private static int intrinsic(String function) {
+        switch (function) {
+            case "Math.multiply":
+                return MULTIPLY;
+            case "Math.divide":
+                return DIVIDE;
+            case "String.appendChar":
+                return APPEND_CHAR;
+            default:
+                return CALL_BUILTIN;
+        }
+    }
+
+    private static String className(String function) {
+        int dot = function.indexOf('.');
+        return dot == -1 ? function : function.substring(0, dot);
+    }
+
+    private void addPush(String segment, int index, String fileName) {
+        switch (segment) {
+            case "constant":
+                add(PUSH_CONSTANT, index, 0);
+                break;
+            case "local":
+                add(PUSH_LOCAL, index, 0);
+                break;
+            case "argument":
+                add(PUSH_ARGUMENT, index, 0);
+                break;
+            case "this":
+                add(PUSH_THIS, index, 0);
+                break;
+            case "that":
+                add(PUSH_THAT, index, 0);
+                break;
+            default:
+                add(PUSH_ADDRESS, address(segment, index, fileName), 0);
+                break;
+        }
+    }
+
+    private void addPop(String segment, int index, String fileName) {
+        switch (segment) {
+            case "local":
+                add(POP_LOCAL, index, 0);
+                break;
+            case "argument":
+                add(POP_ARGUMENT, index, 0);
+                break;
+            case "this":
+                add(POP_THIS, index, 0);
+                break;
+            case "that":
+                add(POP_THAT, index, 0);
+                break;
+            case "constant":
+                throw new IllegalArgumentException("Cannot pop to constant");
+            default:
+                add(POP_ADDRESS, address(segment, index, fileName), 0);
+                break;
+        }
+    }
+
+    // RAM address of a temp, pointer or static entry. Statics get addresses from 16 on in the
+    // order they are first used, file by file, like the assembler gives them to variables.
+    private int address(String segment, int index, String fileName) {
+        switch (segment) {
+            case "temp":
+                if (index > 7) {
+                    throw new IllegalArgumentException("temp " + index + " is out of range");
+                }
+                return 5 + index;
+
+            case "pointer":
+                if (index > 1) {
+                    throw new IllegalArgumentException("pointer " + index + " is out of range");
+                }
+                return 3 + index;
+
+            case "static":
+                String name = fileName + "." + index;
+                Integer address = statics.get(name);
+                if (address == null) {
+                    address = STATIC_BASE + statics.size();
+                    if (address >= STATIC_END) {
+                        throw new IllegalArgumentException("Too many static variables");
+                    }
+                    statics.put(name, address);
+                }
+                return address;
+
+            default:
+                throw new IllegalArgumentException("Unknown segment " + segment);
+        }
+    }
+
+    private void addJump(int opcode, String label) {
+        fixups.add(size);
+        fixupNames.add(label);
+        add(opcode, 0, 0);
+    }
+
+    private static int arithmetic(String command) {
+        switch (command) {
+            case "add":
+                return ADD;
+            case "sub":
+                return SUB;
+            case "neg":
+                return NEG;
+            case "eq":
+                return EQ;
+            case "gt":
+                return GT;
+            case "lt":
+                return LT;
+            case "and":
+                return AND;
+            case "or":
+                return OR;
+            case "not":
+                return NOT;
+            default:
+                throw new IllegalArgumentException("Unknown command " + command);
+        }
+    }
+
+    private void add(int opcode, int operand, int args) {
+        if (size == opcodes.length) {
+            opcodes = grow(opcodes);
+            operands = grow(operands);
+            nArgs = grow(nArgs);
+        }
+        opcodes[size] = opcode;
+        operands[size] = operand;
+        nArgs[size] = args;
+        size++;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] bigger = new int[array.length * 2];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+}